@@ -0,0 +1,93 @@
+import bench.Stages;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * PipelineStages.java
+ * Implements the benchmarked pipeline stages against the generator's classes
+ */
+public class PipelineStages implements Stages {
+
+    @Override
+    public Object newAssetLoader(String loading) {
+        return new AssetLoader(AssetLoader.Loading.valueOf(loading.toUpperCase()));
+    }
+
+    @Override
+    public Object createText(String text, boolean monolouge) {
+        return BubbleText.createText(text, monolouge);
+    }
+
+    @Override
+    public String wrap(String text, int wrapLength) {
+        return BubbleText.wrap(text, wrapLength, "\n", true);
+    }
+
+    @Override
+    public Object parse(List<String> lines) {
+        return new Conversation(lines);
+    }
+
+    @Override
+    public List<BufferedImage> toImages(List<String> lines) {
+        return new Conversation(lines).toImages();
+    }
+
+    @Override
+    public BufferedImage sprite() {
+        return AssetLoader.getInstance().getCharacter("anna").getImage("neutral");
+    }
+
+    @Override
+    public BufferedImage background() {
+        return AssetLoader.getInstance().getBackground("basket");
+    }
+
+    @Override
+    public BufferedImage toZoomed(int level, BufferedImage src, boolean flip) {
+        return Conversation.toZoomed(level, src, flip);
+    }
+
+    @Override
+    public BufferedImage flip(BufferedImage src) {
+        return Conversation.flip(src);
+    }
+
+    @Override
+    public BufferedImage backgroundZoom(int level, BufferedImage back) {
+        return Conversation.backgroundZoom(level, back);
+    }
+
+    @Override
+    public BufferedImage toComic(List<BufferedImage> panels, int width) {
+        return new Comic(panels, width).toImage();
+    }
+
+    @Override
+    public void writeImageIO(BufferedImage img, OutputStream out) throws IOException {
+        ImageIO.write(img, "PNG", out);
+    }
+
+    @Override
+    public void writeStreaming(BufferedImage img, FileChannel out) throws IOException {
+        try (PngWriter png = new PngWriter(out, img.getWidth())) {
+            png.write(img);
+        }
+    }
+
+    @Override
+    public void render(Reader in, FileChannel out) throws IOException {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        ComicWriter c = new ComicWriter(out, 4);
+        new Conversation().toImages(new BufferedReader(in), pool, pool.getParallelism() * 2, c);
+        c.close();
+    }
+}
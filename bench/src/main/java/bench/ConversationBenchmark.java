@@ -0,0 +1,58 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ConversationBenchmark.java
+ * Measures parsing and rendering whole synthetic conversations of increasing length
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+public class ConversationBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int lines;
+
+    private Stages stages;
+    private List<String> conversation;
+    private String text;
+    private File output;
+
+    @Setup
+    public void setup() throws IOException {
+        stages = Stages.load();
+        conversation = SyntheticConversation.lines(lines, 42);
+        text = SyntheticConversation.text(lines, 42);
+        output = File.createTempFile("comic", ".png");
+        output.deleteOnExit();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    public Object parse() {
+        return stages.parse(conversation);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public long render() throws IOException {
+        try (FileChannel out = FileChannel.open(output.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            stages.render(new StringReader(text), out);
+            return out.size();
+        }
+    }
+}
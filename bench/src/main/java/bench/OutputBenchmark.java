@@ -0,0 +1,61 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OutputBenchmark.java
+ * Measures combining panels into a comic strip and encoding the strip as a PNG
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OutputBenchmark {
+
+    @Param({"16", "256"})
+    public int lines;
+
+    private Stages stages;
+    private List<BufferedImage> panels;
+    private BufferedImage comic;
+    private File output;
+
+    @Setup
+    public void setup() throws IOException {
+        stages = Stages.load();
+        panels = stages.toImages(SyntheticConversation.lines(lines, 42));
+        comic = stages.toComic(panels, 4);
+        output = File.createTempFile("comic", ".png");
+        output.deleteOnExit();
+    }
+
+    @Benchmark
+    public BufferedImage toComic() {
+        return stages.toComic(panels, 4);
+    }
+
+    @Benchmark
+    public void encodeImageIO() throws IOException {
+        stages.writeImageIO(comic, OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public long encodeStreaming() throws IOException {
+        try (FileChannel out = FileChannel.open(output.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            stages.writeStreaming(comic, out);
+            return out.size();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PanelBenchmark.java
+ * Measures drawing a single panel, with one speaker and with two speakers
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PanelBenchmark {
+
+    private static final List<String> MONOLOGUE =
+            Arrays.asList("anna,this is a much longer message that should wrap across several lines");
+
+    private static final List<String> DIALOGUE =
+            Arrays.asList("anna,hello there how are you doing today", "xeno,ok lol");
+
+    private Stages stages;
+
+    @Setup
+    public void setup() {
+        stages = Stages.load();
+    }
+
+    @Benchmark
+    public List<BufferedImage> monologue() {
+        return stages.toImages(MONOLOGUE);
+    }
+
+    @Benchmark
+    public List<BufferedImage> dialogue() {
+        return stages.toImages(DIALOGUE);
+    }
+}
@@ -0,0 +1,124 @@
+package bench;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Stages.java
+ * The stages of the rendering pipeline measured by the benchmarks.
+ * The generator's classes are in the default package, which JMH benchmarks can not be in or import from,
+ * so the stages are implemented by PipelineStages in the default package and loaded by name
+ */
+public interface Stages {
+
+    /**
+     * Load the stages implemented against the generator's classes
+     *
+     * @return The pipeline stages
+     */
+    static Stages load() {
+        try {
+            return (Stages) Class.forName("PipelineStages").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException roe) {
+            throw new IllegalStateException("Can not load pipeline stages", roe);
+        }
+    }
+
+    /**
+     * Create a new asset loader, as done once at startup
+     *
+     * @param loading The name of the loading mode: eager, parallel or lazy
+     * @return The asset loader
+     */
+    Object newAssetLoader(String loading);
+
+    /**
+     * Split a message into speech bubbles
+     *
+     * @param text      The message
+     * @param monolouge Whether the message is a monologue or a reply
+     * @return The speech bubbles
+     */
+    Object createText(String text, boolean monolouge);
+
+    /**
+     * Wrap text to a number of characters per line
+     *
+     * @param text       The text
+     * @param wrapLength The maximum number of characters per line
+     * @return The wrapped text
+     */
+    String wrap(String text, int wrapLength);
+
+    /**
+     * Parse the lines of a conversation and assign the participants characters
+     *
+     * @param lines The comma separated lines of the conversation
+     * @return The conversation
+     */
+    Object parse(List<String> lines);
+
+    /**
+     * Render every panel of a conversation on the calling thread
+     *
+     * @param lines The comma separated lines of the conversation
+     * @return The panels
+     */
+    List<BufferedImage> toImages(List<String> lines);
+
+    /**
+     * @return The neutral expression of a character, as loaded
+     */
+    BufferedImage sprite();
+
+    /**
+     * @return A background image, as loaded
+     */
+    BufferedImage background();
+
+    BufferedImage toZoomed(int level, BufferedImage src, boolean flip);
+
+    BufferedImage flip(BufferedImage src);
+
+    BufferedImage backgroundZoom(int level, BufferedImage back);
+
+    /**
+     * Combine panels into a single comic strip image
+     *
+     * @param panels The panels
+     * @param width  The maximum number of panels per row
+     * @return The comic strip
+     */
+    BufferedImage toComic(List<BufferedImage> panels, int width);
+
+    /**
+     * Encode an image as a PNG with ImageIO
+     *
+     * @param img The image
+     * @param out The stream to write to
+     * @throws IOException If the image can not be written
+     */
+    void writeImageIO(BufferedImage img, OutputStream out) throws IOException;
+
+    /**
+     * Encode an image as a PNG with the generator's streaming encoder
+     *
+     * @param img The image
+     * @param out The file to write to
+     * @throws IOException If the image can not be written
+     */
+    void writeStreaming(BufferedImage img, FileChannel out) throws IOException;
+
+    /**
+     * Render a conversation from start to finish as Main does, streaming panels into a comic file
+     *
+     * @param in  The comma separated lines of the conversation
+     * @param out The file to write the comic to
+     * @throws IOException If the conversation can not be read or the comic can not be written
+     */
+    void render(Reader in, FileChannel out) throws IOException;
+}
@@ -0,0 +1,33 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * StartupBenchmark.java
+ * Measures creating the AssetLoader in each loading mode
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StartupBenchmark {
+
+    @Param({"eager", "parallel", "lazy"})
+    public String loading;
+
+    private Stages stages;
+
+    @Setup
+    public void setup() {
+        stages = Stages.load();
+    }
+
+    @Benchmark
+    public Object assetLoader() {
+        return stages.newAssetLoader(loading);
+    }
+}
@@ -0,0 +1,63 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * SyntheticConversation.java
+ * Generates reproducible conversations in the generator's input format for the benchmarks
+ */
+public final class SyntheticConversation {
+
+    /**
+     * Nicknames of the speakers, most matching a character and some assigned one at random
+     */
+    private static final String[] NICKS = {"anna", "armando", "bolo", "will", "xeno", "guest", "lurker"};
+
+    /**
+     * Words the messages are made of, with short replies repeated often as in real chat logs
+     */
+    private static final String[] WORDS = ("lol ok ok yes no hello there how are you doing today this is a much "
+            + "longer message that should wrap across several lines in a speech bubble maybe").split(" ");
+
+    private SyntheticConversation() {
+    }
+
+    /**
+     * Generate the lines of a conversation
+     *
+     * @param count The number of lines
+     * @param seed  The seed, so the same conversation can be generated again
+     * @return The comma separated lines of the conversation
+     */
+    public static List<String> lines(int count, long seed) {
+        Random r = new Random(seed);
+        List<String> result = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            StringBuilder sb = new StringBuilder(NICKS[r.nextInt(NICKS.length)]).append(',');
+            int words = r.nextInt(4) == 0 ? 1 + r.nextInt(40) : 1 + r.nextInt(6);
+            for (int w = 0; w < words; w++) {
+                if (w > 0) {
+                    sb.append(' ');
+                }
+                sb.append(WORDS[r.nextInt(WORDS.length)]);
+            }
+            result.add(sb.toString());
+        }
+
+        return result;
+    }
+
+    /**
+     * Generate a conversation as a single string, one line per message
+     *
+     * @param count The number of lines
+     * @param seed  The seed, so the same conversation can be generated again
+     * @return The conversation
+     */
+    public static String text(int count, long seed) {
+        return String.join("\n", lines(count, seed)) + "\n";
+    }
+}
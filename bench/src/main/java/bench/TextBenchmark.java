@@ -0,0 +1,45 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TextBenchmark.java
+ * Measures wrapping messages and splitting them into speech bubbles
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TextBenchmark {
+
+    @Param({"LOL", "hello there how are you doing today",
+            "this is a much longer message that should wrap across several lines in a speech bubble and then overflow "
+                    + "into another speech bubble because it goes on and on and on for far too long"})
+    public String text;
+
+    private Stages stages;
+
+    @Setup
+    public void setup() {
+        stages = Stages.load();
+    }
+
+    @Benchmark
+    public Object createMonologue() {
+        return stages.createText(text, true);
+    }
+
+    @Benchmark
+    public Object createReply() {
+        return stages.createText(text, false);
+    }
+
+    @Benchmark
+    public String wrap() {
+        return stages.wrap(text.toUpperCase(), 26);
+    }
+}
@@ -0,0 +1,50 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TransformBenchmark.java
+ * Measures zooming and flipping character sprites and zooming backgrounds
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TransformBenchmark {
+
+    private Stages stages;
+    private BufferedImage sprite;
+    private BufferedImage background;
+
+    @Setup
+    public void setup() {
+        stages = Stages.load();
+        sprite = stages.sprite();
+        background = stages.background();
+    }
+
+    @Benchmark
+    public BufferedImage zoomCloseUp() {
+        return stages.toZoomed(1, sprite, true);
+    }
+
+    @Benchmark
+    public BufferedImage zoomInitialSize() {
+        return stages.toZoomed(2, sprite, true);
+    }
+
+    @Benchmark
+    public BufferedImage flip() {
+        return stages.flip(sprite);
+    }
+
+    @Benchmark
+    public BufferedImage backgroundZoom() {
+        return stages.backgroundZoom(1, background);
+    }
+}
@@ -0,0 +1,466 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * AnimatedWriter.java
+ * Writes a comic as an animated PNG with one panel per frame, so that the first panel can be shown before the rest of
+ * the conversation has been drawn. Each frame is encoded as soon as its panel is added, on an executor so several are
+ * encoded at once, and is written as the difference from the frame before it: only the rectangle that changed is
+ * stored, with the pixels inside it that did not change made transparent so they compress to almost nothing.
+ * Only the previous panel and the frames being encoded are held in memory.
+ * <p>
+ * All panels must be the size of the first. The number of frames goes in the header, before the first frame, so if it
+ * is not known up front it is written into the header when the writer is closed, which needs a file that can seek.
+ * Given the number of frames, the animation can be streamed to any channel as it is encoded
+ */
+public class AnimatedWriter implements Consumer<BufferedImage>, Closeable {
+
+    /**
+     * The system property used to set how long each panel is shown, in milliseconds
+     */
+    public static final String DELAY_PROPERTY = "mschat.animation.delay";
+
+    /**
+     * The system property used to write comics as animations rather than strips
+     */
+    public static final String PROPERTY = "mschat.animated";
+
+    /**
+     * The bytes every PNG file starts with
+     */
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    /**
+     * The position of the number of frames in the file, after the signature, the IHDR chunk, and the acTL chunk
+     * length and type
+     */
+    private static final int FRAMES_OFFSET = 8 + (4 + 4 + 13 + 4) + 4 + 4;
+
+    /**
+     * The maximum number of bytes of compressed data in each IDAT or fdAT chunk
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * The bytes per pixel, as frames are written with alpha
+     */
+    private static final int BPP = 4;
+
+    /**
+     * Frame blend operations: replace the area of the frame, or draw the frame over it
+     */
+    private static final byte BLEND_SOURCE = 0;
+    private static final byte BLEND_OVER = 1;
+
+    /**
+     * The channel being written to
+     */
+    private final WritableByteChannel out;
+
+    /**
+     * The number of frames the animation will have, or -1 if it is written into the header when closed
+     */
+    private final int expected;
+
+    /**
+     * The position in the file the PNG starts at, if the number of frames is written when closed
+     */
+    private final long start;
+
+    private final int level;
+    private final PngWriter.Filter filter;
+
+    /**
+     * How long each panel is shown, in milliseconds
+     */
+    private final int delay;
+
+    /**
+     * The executor frames are encoded on
+     */
+    private final ExecutorService executor;
+
+    /**
+     * The maximum number of frames being encoded or waiting to be written
+     */
+    private final int window;
+
+    /**
+     * The frames being encoded, oldest first
+     */
+    private final Deque<Future<Frame>> pending = new ArrayDeque<>();
+
+    /**
+     * The pixels of the previous panel, or null before the first
+     */
+    private int[] previous;
+
+    /**
+     * The size of every frame, set by the first panel
+     */
+    private int width = -1;
+    private int height = -1;
+
+    /**
+     * The number of frames written so far
+     */
+    private int frames;
+
+    /**
+     * The sequence number of the next fcTL or fdAT chunk
+     */
+    private int sequence;
+
+    /**
+     * Create a new animated writer that writes the number of frames when closed, compressed as set by the system
+     * properties of {@link PngWriter}
+     *
+     * @param out The file to write to from its current position, opened for reading and writing
+     * @throws IOException If the position of the file can not be read
+     */
+    public AnimatedWriter(FileChannel out) throws IOException {
+        this(out, -1);
+    }
+
+    /**
+     * Create a new animated writer for a known number of panels, compressed as set by the system properties of
+     * {@link PngWriter}
+     *
+     * @param out    The channel to write to
+     * @param frames The number of panels that will be added
+     * @throws IOException If the position of the file can not be read
+     */
+    public AnimatedWriter(WritableByteChannel out, int frames) throws IOException {
+        this(out, frames, PngWriter.getLevel(), PngWriter.getFilter(), getDelay(), ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Create a new animated writer
+     *
+     * @param out      The channel to write to. It must be a {@link SeekableByteChannel} opened for reading and writing
+     *                 if the number of frames is not known
+     * @param frames   The number of panels that will be added, or -1 to write the number of frames when closed
+     * @param level    The compression level, from 0 to 9
+     * @param filter   The filter applied to each row
+     * @param delay    How long each panel is shown, in milliseconds
+     * @param executor The executor to encode frames on
+     * @throws IOException If the position of the file can not be read
+     */
+    public AnimatedWriter(WritableByteChannel out, int frames, int level, PngWriter.Filter filter, int delay,
+                          ExecutorService executor) throws IOException {
+        if (frames < 0 && !(out instanceof SeekableByteChannel)) {
+            throw new IllegalArgumentException("The number of frames must be known to write to a channel that can not "
+                    + "seek");
+        }
+
+        this.out = out;
+        // an empty conversation is written as a single frame
+        this.expected = frames < 0 ? -1 : Math.max(frames, 1);
+        this.start = frames < 0 ? ((SeekableByteChannel) out).position() : 0;
+        this.level = level;
+        this.filter = filter;
+        this.delay = delay;
+        this.executor = executor;
+        this.window = executor instanceof ForkJoinPool ? ((ForkJoinPool) executor).getParallelism() * 2
+                : Runtime.getRuntime().availableProcessors() * 2;
+    }
+
+    /**
+     * Read how long each panel is shown from the {@link #DELAY_PROPERTY} system property
+     *
+     * @return The delay in milliseconds, the default of 2000 if none or an invalid delay is set
+     */
+    private static int getDelay() {
+        String delay = System.getProperty(DELAY_PROPERTY);
+        if (delay != null) {
+            try {
+                int result = Integer.parseInt(delay);
+                if (result >= 0 && result <= 0xFFFF) {
+                    return result;
+                }
+            } catch (NumberFormatException ignored) {
+            }
+            System.err.println("Invalid animation delay: " + delay);
+        }
+        return 2000;
+    }
+
+    /**
+     * Add the next panel as a frame of the animation
+     *
+     * @param panel The image of the panel
+     * @throws IllegalArgumentException If the panel is not the same size as the first
+     * @throws UncheckedIOException     If an earlier frame can not be written
+     */
+    @Override
+    public void accept(BufferedImage panel) {
+        long began = Metrics.start();
+        try {
+            if (width < 0) {
+                writeHeader(panel.getWidth(), panel.getHeight());
+            } else if (panel.getWidth() != width || panel.getHeight() != height) {
+                throw new IllegalArgumentException("Expected a " + width + "x" + height + " panel but was "
+                        + panel.getWidth() + "x" + panel.getHeight());
+            }
+
+            final int[] before = previous;
+            final int[] pixels = panel.getRGB(0, 0, width, height, null, 0, width);
+            previous = pixels;
+
+            if (pending.size() >= window) {
+                writeFrame(pending.poll());
+            }
+            pending.add(executor.submit(() -> encode(before, pixels)));
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        Metrics.stop(Metrics.Stage.ENCODE, began);
+    }
+
+    /**
+     * Write any remaining frames and finish the animation, writing the number of frames into its header if it was not
+     * known. The channel itself is not closed
+     *
+     * @throws IOException If the animation can not be written, or did not have the number of frames it was created for
+     */
+    @Override
+    public void close() throws IOException {
+        long began = Metrics.start();
+        if (width < 0) {
+            // a PNG must have an image, so an empty conversation is a single transparent pixel
+            accept(new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB));
+        }
+        while (!pending.isEmpty()) {
+            writeFrame(pending.poll());
+        }
+        if (expected >= 0 && frames != expected) {
+            throw new IOException("Expected " + expected + " frames but " + frames + " were added");
+        }
+        PngWriter.writeChunk(out, "IEND", new byte[0], 0, 0);
+        Metrics.stop(Metrics.Stage.ENCODE, began);
+
+        if (expected < 0) {
+            writeFrames();
+        }
+    }
+
+    /**
+     * Write the signature, the header, and the animation control chunk, whose number of frames is written when closed
+     * if it is not known yet
+     *
+     * @param width  The width of every frame
+     * @param height The height of every frame
+     * @throws IOException If the header can not be written
+     */
+    private void writeHeader(int width, int height) throws IOException {
+        this.width = width;
+        this.height = height;
+
+        PngWriter.write(out, ByteBuffer.wrap(SIGNATURE));
+
+        ByteBuffer ihdr = ByteBuffer.allocate(13);
+        ihdr.putInt(width);
+        ihdr.putInt(height);
+        ihdr.put((byte) 8); // bit depth
+        ihdr.put((byte) 6); // colour type: RGB with alpha
+        ihdr.put((byte) 0); // compression method
+        ihdr.put((byte) 0); // filter method
+        ihdr.put((byte) 0); // interlace method
+        PngWriter.writeChunk(out, "IHDR", ihdr.array(), 0, 13);
+
+        ByteBuffer actl = ByteBuffer.allocate(8);
+        actl.putInt(Math.max(expected, 0)); // number of frames, written when closed if not known
+        actl.putInt(0); // number of times to play, forever
+        PngWriter.writeChunk(out, "acTL", actl.array(), 0, 8);
+    }
+
+    /**
+     * Write the number of frames into the animation control chunk, and the chunk's checksum which covers it
+     *
+     * @throws IOException If the chunk can not be rewritten
+     */
+    private void writeFrames() throws IOException {
+        SeekableByteChannel file = (SeekableByteChannel) out;
+        long end = file.position();
+
+        ByteBuffer actl = ByteBuffer.allocate(4 + 8);
+        actl.put("acTL".getBytes(StandardCharsets.US_ASCII)).putInt(frames).putInt(0);
+        CRC32 crc = new CRC32();
+        crc.update(actl.array());
+
+        ByteBuffer patch = ByteBuffer.allocate(8 + 4);
+        patch.putInt(frames).putInt(0).putInt((int) crc.getValue());
+        patch.flip();
+        file.position(start + FRAMES_OFFSET);
+        PngWriter.write(file, patch);
+
+        file.position(end);
+    }
+
+    /**
+     * Wait for a frame to be encoded and write its control chunk and data. The first frame is written as the default
+     * image, so viewers that do not support animation show the first panel
+     *
+     * @param f The frame being encoded
+     * @throws IOException If the frame can not be encoded or written
+     */
+    private void writeFrame(Future<Frame> f) throws IOException {
+        Frame frame;
+        try {
+            frame = f.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while encoding animation");
+        } catch (ExecutionException ee) {
+            throw new IOException("Error encoding animation: " + ee.getCause().getLocalizedMessage(), ee.getCause());
+        }
+
+        ByteBuffer fctl = ByteBuffer.allocate(26);
+        fctl.putInt(sequence++);
+        fctl.putInt(frame.width);
+        fctl.putInt(frame.height);
+        fctl.putInt(frame.x);
+        fctl.putInt(frame.y);
+        fctl.putShort((short) delay); // delay numerator
+        fctl.putShort((short) 1000); // delay denominator, so the delay is in milliseconds
+        fctl.put((byte) 0); // dispose operation: leave the frame in place
+        fctl.put(frame.blend);
+        PngWriter.writeChunk(out, "fcTL", fctl.array(), 0, 26);
+
+        for (int off = 0; off < frame.data.length; off += CHUNK_SIZE) {
+            int len = Math.min(CHUNK_SIZE, frame.data.length - off);
+            if (frames == 0) {
+                PngWriter.writeChunk(out, "IDAT", frame.data, off, len);
+            } else {
+                ByteBuffer fdat = ByteBuffer.allocate(4 + len);
+                fdat.putInt(sequence++);
+                fdat.put(frame.data, off, len);
+                PngWriter.writeChunk(out, "fdAT", fdat.array(), 0, fdat.capacity());
+            }
+        }
+        frames++;
+    }
+
+    /**
+     * A rectangle of a frame compressed into a zlib stream
+     */
+    private static class Frame {
+        int x;
+        int y;
+        int width;
+        int height;
+        byte blend;
+        byte[] data;
+    }
+
+    /**
+     * Find what changed between two panels, then filter and compress it
+     *
+     * @param before The ARGB pixels of the previous panel, or null for the first frame
+     * @param after  The ARGB pixels of the panel
+     * @return The encoded frame
+     */
+    private Frame encode(int[] before, int[] after) {
+        Frame frame = new Frame();
+        frame.width = width;
+        frame.height = height;
+        frame.blend = BLEND_SOURCE;
+
+        boolean delta = before != null;
+        if (delta) {
+            // the smallest rectangle holding every changed pixel
+            int minX = width, minY = height, maxX = -1, maxY = -1;
+            for (int y = 0; y < height; y++) {
+                for (int x = 0, i = y * width; x < width; x++, i++) {
+                    if (before[i] != after[i]) {
+                        minX = Math.min(minX, x);
+                        maxX = Math.max(maxX, x);
+                        minY = Math.min(minY, y);
+                        maxY = y;
+                    }
+                }
+            }
+
+            if (maxY < 0) {
+                // nothing changed, but a frame must have at least one pixel; a transparent one drawn over changes nothing
+                minX = maxX = minY = maxY = 0;
+            }
+            frame.x = minX;
+            frame.y = minY;
+            frame.width = maxX - minX + 1;
+            frame.height = maxY - minY + 1;
+
+            // unchanged pixels can only be left transparent if every changed pixel is opaque and so replaces the old
+            boolean opaque = true;
+            for (int y = frame.y; y < frame.y + frame.height && opaque; y++) {
+                for (int i = y * width + frame.x; i < y * width + frame.x + frame.width; i++) {
+                    if (before[i] != after[i] && (after[i] >>> 24) != 0xFF) {
+                        opaque = false;
+                        break;
+                    }
+                }
+            }
+            frame.blend = opaque ? BLEND_OVER : BLEND_SOURCE;
+            delta = opaque;
+        }
+
+        int rowBytes = frame.width * BPP;
+        // the row before the first row is treated as zero by the filters
+        byte[] data = new byte[(1 + frame.height) * rowBytes];
+        for (int y = 0; y < frame.height; y++) {
+            int src = (frame.y + y) * width + frame.x;
+            int dst = (1 + y) * rowBytes;
+            for (int x = 0; x < frame.width; x++, src++) {
+                int p = after[src];
+                if (delta && p == before[src]) {
+                    dst += BPP;
+                    continue;
+                }
+                data[dst++] = (byte) (p >> 16);
+                data[dst++] = (byte) (p >> 8);
+                data[dst++] = (byte) p;
+                data[dst++] = (byte) (p >>> 24);
+            }
+        }
+
+        byte[] filtered = PngWriter.filterRows(filter, data, frame.height, rowBytes, BPP);
+
+        Deflater deflater = new Deflater(level);
+        try {
+            if (filter != PngWriter.Filter.NONE) {
+                deflater.setStrategy(Deflater.FILTERED);
+            }
+            deflater.setInput(filtered);
+            deflater.finish();
+
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(filtered.length / 4);
+            byte[] buffer = new byte[CHUNK_SIZE];
+            while (!deflater.finished()) {
+                int len = deflater.deflate(buffer);
+                compressed.write(buffer, 0, len);
+            }
+            frame.data = compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,260 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * AssetCache.java
+ * A thread safe cache of decoded assets bounded by an approximate number of bytes, evicting assets that have not been
+ * used recently. Lookups take no locks, only adding assets does, so many rendering threads can read the cache at once.
+ * Assets are evicted in the order they were added, except that an asset looked up since it was last passed over is
+ * given a second chance and moved to the back, which approximates least recently used without ordering every lookup.
+ * Assets evicted from the cache are kept softly reachable so they can be reused until the garbage collector needs the memory
+ */
+public class AssetCache {
+
+    /**
+     * An asset held by the cache along with its size
+     */
+    private static class Entry {
+        final String key;
+        final Object value;
+        final long bytes;
+
+        /**
+         * Whether the asset has been looked up since eviction last passed over it
+         */
+        volatile boolean used;
+
+        Entry(String key, Object value, long bytes) {
+            this.key = key;
+            this.value = value;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * A soft reference to an evicted asset that remembers its key so it can be removed once cleared
+     */
+    private static class SoftEntry extends SoftReference<Entry> {
+        final String key;
+
+        SoftEntry(String key, Entry entry, ReferenceQueue<Entry> queue) {
+            super(entry, queue);
+            this.key = key;
+        }
+    }
+
+    /**
+     * The maximum number of bytes of assets strongly held by the cache
+     */
+    private final long budget;
+
+    /**
+     * The assets strongly held by the cache
+     */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * The assets strongly held by the cache in the order they will be considered for eviction, only used while holding
+     * the cache's lock
+     */
+    private final ArrayDeque<Entry> order = new ArrayDeque<>();
+
+    /**
+     * The assets that have been evicted but may not have been collected yet
+     */
+    private final Map<String, SoftEntry> evicted = new ConcurrentHashMap<>();
+
+    /**
+     * Soft references that have been cleared by the garbage collector
+     */
+    private final ReferenceQueue<Entry> cleared = new ReferenceQueue<>();
+
+    /**
+     * The number of bytes of assets strongly held by the cache, only changed while holding the cache's lock
+     */
+    private volatile long bytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private volatile long evictions;
+
+    /**
+     * Creates a new cache
+     *
+     * @param budget The maximum number of bytes of assets to strongly hold
+     */
+    public AssetCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Get an asset from the cache without locking, unless it has to be restored from the evicted assets
+     *
+     * @param key The key of the asset
+     * @return The asset, or null if it is not in the cache and must be decoded again
+     */
+    public Object get(String key) {
+        Entry e = find(key);
+        if (e == null) {
+            misses.increment();
+            return null;
+        }
+
+        hits.increment();
+        return e.value;
+    }
+
+    /**
+     * Get an asset from the cache like {@link #get}, without counting the lookup as a hit or a miss. For checking again
+     * whether another thread has added an asset after it was already missed
+     *
+     * @param key The key of the asset
+     * @return The asset, or null if it is not in the cache
+     */
+    public Object peek(String key) {
+        Entry e = find(key);
+        return e != null ? e.value : null;
+    }
+
+    private Entry find(String key) {
+        Entry e = entries.get(key);
+
+        if (e == null) {
+            SoftEntry ref = evicted.get(key);
+            if (ref != null) {
+                e = ref.get();
+            }
+
+            if (e == null) {
+                return null;
+            }
+
+            // still reachable since it was evicted, make it strongly held again
+            restore(key, ref, e);
+        }
+
+        e.used = true;
+        return e;
+    }
+
+    /**
+     * Add an asset to the cache, evicting assets that have not been used recently if over budget.
+     * The most recently added asset is always kept, even if it alone is over budget
+     *
+     * @param key   The key of the asset
+     * @param value The asset
+     * @param bytes The approximate size of the asset in bytes
+     */
+    public synchronized void put(String key, Object value, long bytes) {
+        evicted.remove(key);
+        add(new Entry(key, value, bytes));
+    }
+
+    /**
+     * Make an evicted asset strongly held again, unless another thread already has
+     */
+    private synchronized void restore(String key, SoftEntry ref, Entry e) {
+        if (evicted.remove(key, ref)) {
+            add(e);
+        }
+    }
+
+    private void add(Entry e) {
+        Entry previous = entries.put(e.key, e);
+        long total = bytes + e.bytes;
+        if (previous != null) {
+            order.remove(previous);
+            total -= previous.bytes;
+        }
+        order.addLast(e);
+
+        while (total > budget && entries.size() > 1) {
+            Entry oldest = order.pollFirst();
+            if (oldest == e || oldest.used) {
+                // keep the asset just added, and give assets used since they were last passed over another chance
+                oldest.used = false;
+                order.addLast(oldest);
+                continue;
+            }
+            entries.remove(oldest.key);
+
+            total -= oldest.bytes;
+            evicted.put(oldest.key, new SoftEntry(oldest.key, oldest, cleared));
+            evictions++;
+        }
+        bytes = total;
+
+        purge();
+    }
+
+    /**
+     * Forget any evicted assets that have since been garbage collected
+     */
+    private void purge() {
+        SoftEntry ref;
+        while ((ref = (SoftEntry) cleared.poll()) != null) {
+            evicted.remove(ref.key, ref);
+        }
+    }
+
+    /**
+     * @return The maximum number of bytes of assets strongly held by the cache
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return The number of bytes of assets currently strongly held by the cache
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return The number of lookups that found their asset
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return The number of lookups that had to decode their asset again
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The number of assets evicted to stay within budget
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public String toString() {
+        return "AssetCache{bytes=" + bytes + "/" + budget + ", entries=" + entries.size() + ", hits=" + getHits()
+                + ", misses=" + getMisses() + ", evictions=" + evictions + "}";
+    }
+
+    /**
+     * Get the approximate size of an image in memory
+     *
+     * @param img The image to measure
+     * @return The size of the image's pixel data in bytes
+     */
+    public static long sizeOf(BufferedImage img) {
+        if (img == null) {
+            return 0;
+        }
+        DataBuffer db = img.getRaster().getDataBuffer();
+        return (long) db.getSize() * db.getNumBanks() * DataBuffer.getDataTypeSize(db.getDataType()) / 8;
+    }
+}
@@ -1,62 +1,208 @@
 import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.ToLongFunction;
 
 /**
- * AssetLoader.java - Loads all characters and background images
+ * AssetLoader.java - Loads all characters and background images.
+ * The asset files are indexed once when the loader is created and never change afterwards, and decoded assets are
+ * looked up without locking, so a single loader can be shared by many rendering threads
  */
 public class AssetLoader {
 
     /**
-     * The single assets instance
+     * The system property used to choose how assets are loaded, see {@link Loading}
      */
-    private static AssetLoader instance = new AssetLoader();
+    public static final String LOADING_PROPERTY = "mschat.loading";
 
     /**
-     * A map between character names and their own character object
+     * When the asset files are decoded
      */
-    private Map<String, Character> characters = new HashMap<>();
+    public enum Loading {
+        /**
+         * Decode every asset one after another when the loader is created
+         */
+        EAGER,
+        /**
+         * Decode every asset across all cores when the loader is created
+         */
+        PARALLEL,
+        /**
+         * Only index the asset files when the loader is created, decoding each asset the first time it is requested
+         */
+        LAZY
+    }
+
+    /**
+     * Decodes a single asset file
+     */
+    private interface Decoder<T> {
+        T decode(String name, File f) throws IOException, FontFormatException;
+    }
+
+    /**
+     * Holds the single assets instance. The instance is created outside of AssetLoader's own class
+     * initialisation so that parallel loading threads can call into AssetLoader without deadlocking
+     */
+    private static class Holder {
+        /**
+         * The single assets instance
+         */
+        private static final AssetLoader instance = new AssetLoader(getLoading());
+    }
+
+    /**
+     * A map between character names and their atlas images or the directories containing their expressions
+     */
+    private final Map<String, File> characterFiles = new TreeMap<>();
+
+    /**
+     * A map between the names of characters packed into atlases and the bounds of their expressions, see {@link SpriteAtlas}
+     */
+    private final Map<String, Map<String, Rectangle>> characterAtlases = new TreeMap<>();
+
+    /**
+     * A map between background names and their image files
+     */
+    private final Map<String, File> backgroundFiles = new TreeMap<>();
+
+    /**
+     * A map between font names and their font files
+     */
+    private final Map<String, File> fontFiles = new TreeMap<>();
+
+    /**
+     * The names of all characters, in order, for picking a random character without copying the index
+     */
+    private final String[] characterNames;
+
+    /**
+     * When the assets are decoded
+     */
+    private final Loading mode;
 
     /**
-     * A map between background names and the images that contain them
+     * The system property used to set the number of bytes of decoded assets kept in memory
      */
-    private Map<String, BufferedImage> backgrounds = new HashMap<>();
+    public static final String CACHE_BYTES_PROPERTY = "mschat.cache.bytes";
 
-    private Map<String, Font> fonts = new HashMap<>();
+    /**
+     * The system property used to set a directory for caching decoded images on disk, see {@link RasterCache}
+     */
+    public static final String RASTER_CACHE_PROPERTY = "mschat.rastercache";
+
+    /**
+     * The on-disk cache of decoded images, or null if images are always decoded from their files
+     */
+    private final RasterCache rasterCache = getRasterCache();
+
+    /**
+     * The decoded characters, backgrounds and fonts, keyed by kind and name
+     */
+    private final AssetCache cache = new AssetCache(getCacheBytes());
+
+    /**
+     * The assets being decoded, keyed as in the cache, so that threads requesting the same asset at once decode it once
+     */
+    private final Map<String, FutureTask<Object>> loading = new ConcurrentHashMap<>();
 
     /**
-     * Attempts to load all characters and background images
+     * The stamps of the files assets were last decoded from, see {@link #getStamp}
      */
-    private AssetLoader() {
+    private final Map<File, String> stamps = new ConcurrentHashMap<>();
+
+    /**
+     * Indexes all characters, background images and fonts, decoding them up front unless loading lazily.
+     * Only the benchmarks create loaders directly, everything else shares {@link #getInstance()}
+     *
+     * @param loading When to decode the assets
+     */
+    AssetLoader(Loading loading) {
         File path = new File("mschat/");
 
         File characters = new File(path, "characters/");
         File backgrounds = new File(path, "backgrounds/");
         File fonts = new File(path, "fonts/");
+        File atlas = new File(path, "atlas/");
+
+        indexBackgrounds(backgrounds);
+        indexAtlas(atlas, characters);
+        indexCharacters(characters);
+        indexFonts(fonts);
+        characterNames = characterFiles.keySet().toArray(new String[0]);
+        this.mode = loading;
+
+        if (loading != Loading.LAZY) {
+            loadAll(loading == Loading.PARALLEL);
+        }
+    }
 
+    /**
+     * Read the loading mode from the {@link #LOADING_PROPERTY} system property
+     *
+     * @return The loading mode, eager if none or an unknown mode is set
+     */
+    private static Loading getLoading() {
+        String mode = System.getProperty(LOADING_PROPERTY, Loading.EAGER.name());
         try {
-            loadBackgrounds(backgrounds);
-            loadCharacters(characters);
-            loadFonts(fonts);
-        } catch (IOException ioe) {
-            System.err.println("Error loading file: " + ioe.getLocalizedMessage());
-        } catch (FontFormatException ffe) {
-            System.err.println("Error loading font: " + ffe.getLocalizedMessage());
+            return Loading.valueOf(mode.toUpperCase());
+        } catch (IllegalArgumentException iae) {
+            System.err.println("Unknown loading mode: " + mode);
+            return Loading.EAGER;
         }
     }
 
+    /**
+     * Read the asset cache budget from the {@link #CACHE_BYTES_PROPERTY} system property
+     *
+     * @return The number of bytes of decoded assets to keep, a quarter of the maximum heap if none is set
+     */
+    private static long getCacheBytes() {
+        String bytes = System.getProperty(CACHE_BYTES_PROPERTY);
+        if (bytes != null) {
+            try {
+                return Long.parseLong(bytes);
+            } catch (NumberFormatException nfe) {
+                System.err.println("Invalid cache size: " + bytes);
+            }
+        }
+        return Runtime.getRuntime().maxMemory() / 4;
+    }
+
+    /**
+     * Create the on-disk cache of decoded images in the directory set by the {@link #RASTER_CACHE_PROPERTY} system property
+     *
+     * @return The raster cache, or null if none is set
+     */
+    private static RasterCache getRasterCache() {
+        String dir = System.getProperty(RASTER_CACHE_PROPERTY);
+        return dir != null ? new RasterCache(new File(dir)) : null;
+    }
+
     /**
      * Gets the single instance of this loader
      *
      * @return The static Asset Loader
      */
     public static AssetLoader getInstance() {
-        return instance;
+        return Holder.instance;
     }
 
     /**
@@ -66,21 +212,51 @@ public class AssetLoader {
      * @return The character queried
      */
     public Character getCharacter(String name) {
-        return characters.get(name);
+        return get("character", characterFiles, name, Character.class, this::loadCharacter, AssetLoader::sizeOf);
+    }
+
+    /**
+     * Get a character only if they have already been decoded, without decoding them
+     *
+     * @param name The name of the character to query
+     * @return The character, or null if they have not been decoded or have since been evicted
+     */
+    public Character getDecodedCharacter(String name) {
+        return (Character) cache.peek("character/" + name);
     }
 
     /**
      * Get a random character loaded
      *
-     * @return A random character
+     * @return A random character, or null if there are no characters
      */
     public Character getRandomCharacter() {
-        String rand = (String) characters.keySet().toArray()[(int) (Math.random() * characters.size())];
-        return getCharacter(rand);
+        if (characterNames.length == 0) {
+            return null;
+        }
+        return getCharacter(characterNames[ThreadLocalRandom.current().nextInt(characterNames.length)]);
+    }
+
+    /**
+     * Get the names of all characters
+     *
+     * @return The names of the characters, in order
+     */
+    public List<String> getCharacterNames() {
+        return Collections.unmodifiableList(Arrays.asList(characterNames));
+    }
+
+    /**
+     * Whether assets are only decoded the first time they are requested, rather than all up front
+     *
+     * @return True if loading lazily
+     */
+    public boolean isLazy() {
+        return mode == Loading.LAZY;
     }
 
     public boolean hasCharacter(String name) {
-        return characters.containsKey(name);
+        return characterFiles.containsKey(name);
     }
 
     /**
@@ -90,70 +266,364 @@ public class AssetLoader {
      * @return A BufferedImage of the background requested
      */
     public BufferedImage getBackground(String background) {
-        return backgrounds.get(background);
+        return get("background", backgroundFiles, background, BufferedImage.class,
+                (name, f) -> readImage(f), AssetCache::sizeOf);
+    }
+
+    /**
+     * Get a background image by name, zoomed to a level.
+     * Zoomed backgrounds are kept in the asset cache and shared, so they must not be drawn into
+     *
+     * @param background The name of the background
+     * @param level      The zoom level, as used by {@link Conversation#backgroundZoom}
+     * @return A BufferedImage of the zoomed background, or null if the background does not exist
+     */
+    public BufferedImage getBackground(String background, int level) {
+        String key = "zoomed/" + background + "/" + level;
+        Object cached = cache.get(key);
+        if (cached != null) {
+            return (BufferedImage) cached;
+        }
+
+        return (BufferedImage) load(key, () -> {
+            BufferedImage img = getBackground(background);
+            if (img == null) {
+                return null;
+            }
+
+            BufferedImage zoomed = Conversation.backgroundZoom(level, img);
+            cache.put(key, zoomed, AssetCache.sizeOf(zoomed));
+            return zoomed;
+        });
+    }
+
+    public Font getFont(String name) {
+        return get("font", fontFiles, name, Font.class, this::loadFont, font -> fontFiles.get(name).length());
+    }
+
+    /**
+     * Get a stamp of the file an asset is decoded from, which changes whenever the file is edited or replaced, so that
+     * images drawn from assets can be cached by the files they were drawn from rather than by name.
+     * A file is stamped whenever an asset is decoded from it, including when it is decoded again after being evicted,
+     * so the stamp describes the file as it was last read rather than as it is now
+     *
+     * @param kind       The kind of asset, "character", "background" or "font"
+     * @param name       The name of the asset
+     * @param expression The expression of a character, or null for backgrounds and fonts
+     * @return The length and modification time of the file, or an empty string if the asset does not exist
+     */
+    public String getStamp(String kind, String name, String expression) {
+        Map<String, File> files = kind.equals("character") ? characterFiles
+                : kind.equals("background") ? backgroundFiles : fontFiles;
+        File f = files.get(name);
+        if (f != null && f.isDirectory()) {
+            // a character not packed into an atlas, with a file per expression
+            File dir = f;
+            f = null;
+            for (File expr : listFiles(dir)) {
+                if (expr.getName().lastIndexOf('.') > 0 && getName(expr).equals(expression)) {
+                    f = expr;
+                }
+            }
+        }
+        // an asset that has not been decoded yet is stamped as it is now, and stamped again once it is decoded
+        return f == null ? "" : stamps.computeIfAbsent(f, AssetLoader::stampOf);
+    }
+
+    /**
+     * Stamp a file an asset is about to be decoded from, or every file in a character's directory
+     *
+     * @param f The file or directory
+     */
+    private void stamp(File f) {
+        if (f.isDirectory()) {
+            for (File expr : listFiles(f)) {
+                stamps.put(expr, stampOf(expr));
+            }
+        } else {
+            stamps.put(f, stampOf(f));
+        }
+    }
+
+    /**
+     * Stamp a file by its length and modification time
+     *
+     * @param f The file
+     * @return The stamp of the file
+     */
+    private static String stampOf(File f) {
+        return f.length() + ":" + f.lastModified();
+    }
+
+    /**
+     * Get the cache of decoded assets, which records how often assets had to be decoded
+     *
+     * @return The asset cache
+     */
+    public AssetCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Get an asset from the cache, decoding it again if it has not been requested before or has been evicted
+     *
+     * @param kind    The kind of asset, to keep names of different kinds apart in the cache
+     * @param files   The index of asset files
+     * @param name    The name of the asset
+     * @param type    The type of the asset
+     * @param decoder Decodes the asset from its file
+     * @param sizer   Calculates the approximate size of the asset in bytes
+     * @return The asset, or null if it does not exist or can not be decoded
+     */
+    private <T> T get(String kind, Map<String, File> files, String name, Class<T> type, Decoder<T> decoder,
+                      ToLongFunction<T> sizer) {
+        String key = kind + "/" + name;
+        Object cached = cache.get(key);
+        if (cached != null) {
+            return type.cast(cached);
+        }
+
+        File f = files.get(name);
+        if (f == null) {
+            return null;
+        }
+
+        return type.cast(load(key, () -> {
+            // stamped before reading, so an edit made while the file is read is not hidden by a newer stamp
+            stamp(f);
+            T result;
+            try {
+                result = decoder.decode(name, f);
+            } catch (IOException ioe) {
+                System.err.println("Error loading file: " + ioe.getLocalizedMessage());
+                return null;
+            } catch (FontFormatException ffe) {
+                System.err.println("Error loading font: " + ffe.getLocalizedMessage());
+                return null;
+            }
+
+            if (result != null) {
+                cache.put(key, result, sizer.applyAsLong(result));
+            }
+            return result;
+        }));
     }
 
     /**
-     * Load all characters from the root directory.
+     * Decode an asset that was not in the cache, or wait for the thread already decoding it
+     *
+     * @param key     The key of the asset in the cache
+     * @param decoder Decodes the asset and adds it to the cache
+     * @return The asset, or null if it can not be decoded
+     */
+    private Object load(String key, Callable<Object> decoder) {
+        FutureTask<Object> task = new FutureTask<>(() -> {
+            // another thread may have finished decoding the asset between the cache missing and this task registering
+            Object cached = cache.peek(key);
+            return cached != null ? cached : decoder.call();
+        });
+        FutureTask<Object> running = loading.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                loading.remove(key, task);
+            }
+        }
+
+        try {
+            return running.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Decode every indexed asset
+     *
+     * @param parallel Whether to decode the assets across all cores
+     */
+    private void loadAll(boolean parallel) {
+        List<Runnable> tasks = new ArrayList<>();
+        for (String name : backgroundFiles.keySet()) {
+            tasks.add(() -> getBackground(name));
+        }
+        for (String name : characterFiles.keySet()) {
+            tasks.add(() -> getCharacter(name));
+        }
+        for (String name : fontFiles.keySet()) {
+            tasks.add(() -> getFont(name));
+        }
+
+        (parallel ? tasks.parallelStream() : tasks.stream()).forEach(Runnable::run);
+    }
+
+    /**
+     * Index all characters from the root directory.
      * Each character has their own folder with a selection of expressions in separate image files
      *
      * @param root The root "characters" directory
-     * @throws IOException If a file is not an image or can not be loaded
      */
-    private void loadCharacters(File root) throws IOException {
-        for (File dir : root.listFiles()) {
+    private void indexCharacters(File root) {
+        for (File dir : listFiles(root)) {
             if (dir.isDirectory()) {
                 String name = dir.getName();
-                if (characters.containsKey(name)) {
-                    continue;
+                if (!characterFiles.containsKey(name)) {
+                    characterFiles.put(name, dir);
                 }
+            }
+        }
+    }
 
-                Map<String, BufferedImage> sprites = new TreeMap<>();
-                for (File f : dir.listFiles()) {
-                    sprites.put(getName(f), ImageIO.read(f));
-                }
+    /**
+     * Index all characters packed into atlases by {@link SpriteAtlas}.
+     * Characters in an atlas are loaded from it instead of their own directory, unless their directory has changed
+     * since the atlas was packed
+     *
+     * @param dir        The directory containing the atlases and their index
+     * @param characters The root "characters" directory the atlases were packed from
+     */
+    private void indexAtlas(File dir, File characters) {
+        Map<String, Map<String, Rectangle>> index;
+        try {
+            index = SpriteAtlas.readIndex(dir);
+        } catch (IOException ioe) {
+            System.err.println("Error loading file: " + ioe.getLocalizedMessage());
+            return;
+        }
 
-                characters.put(name, new Character(name, sprites));
+        for (Map.Entry<String, Map<String, Rectangle>> e : index.entrySet()) {
+            String name = e.getKey();
+            File f = new File(dir, name + ".png");
+            if (!f.isFile()) {
+                continue;
+            }
+            if (SpriteAtlas.isStale(f, e.getValue(), new File(characters, name))) {
+                System.err.println("Atlas is out of date, loading from directory: " + name);
+                continue;
             }
+
+            characterAtlases.put(name, e.getValue());
+            characterFiles.put(name, f);
         }
     }
 
+    /**
+     * Load a character from its atlas or its directory of expressions
+     *
+     * @param name The name of the character
+     * @param dir  The atlas image or the directory containing the character's expressions
+     * @return The character loaded
+     * @throws IOException If a file is not an image or can not be loaded
+     */
+    private Character loadCharacter(String name, File dir) throws IOException {
+        if (dir.isFile() && characterAtlases.containsKey(name)) {
+            BufferedImage atlas = rasterCache != null ? rasterCache.read(dir) : SpriteAtlas.read(dir);
+            return new Character(name, SpriteAtlas.split(atlas, characterAtlases.get(name)));
+        }
+
+        Map<String, BufferedImage> sprites = new TreeMap<>();
+        for (File f : listFiles(dir)) {
+            sprites.put(getName(f), readImage(f));
+        }
+
+        return new Character(name, sprites);
+    }
+
 
     /**
-     * Load all the background images from the specified directory
+     * Index all the background images from the specified directory
      *
      * @param dir The directory containing all the backgrounds
-     * @throws IOException If a file is not an image or cannot be loaded
      */
-    private void loadBackgrounds(File dir) throws IOException {
-        for (File f : dir.listFiles()) {
+    private void indexBackgrounds(File dir) {
+        for (File f : listFiles(dir)) {
             if (f.isFile()) {
-                BufferedImage img = ImageIO.read(f);
                 String name = getName(f);
 
-                if (!backgrounds.containsKey(name)) {
-                    backgrounds.put(name, img);
+                if (!backgroundFiles.containsKey(name)) {
+                    backgroundFiles.put(name, f);
                 }
             }
         }
     }
 
-    private void loadFonts(File dir) throws IOException, FontFormatException {
-        for (File f : dir.listFiles()) {
+    /**
+     * Index all the fonts from the specified directory
+     *
+     * @param dir The directory containing all the fonts
+     */
+    private void indexFonts(File dir) {
+        for (File f : listFiles(dir)) {
             if (f.isFile() && f.getName().endsWith(".ttf")) {
-                Font font = Font.createFont(Font.TRUETYPE_FONT, f.toURI().toURL().openStream());
-                font = font.deriveFont(Font.PLAIN, 16);
                 String name = getName(f);
 
-                if (!fonts.containsKey(name)) {
-                    fonts.put(name, font);
+                if (!fontFiles.containsKey(name)) {
+                    fontFiles.put(name, f);
                 }
             }
         }
     }
 
-    public Font getFont(String name) {
-        return fonts.get(name);
+    private Font loadFont(String name, File f) throws IOException, FontFormatException {
+        try (InputStream in = f.toURI().toURL().openStream()) {
+            Font font = Font.createFont(Font.TRUETYPE_FONT, in);
+            return font.deriveFont(Font.PLAIN, 16);
+        }
+    }
+
+    /**
+     * Read an image, through the on-disk raster cache if there is one
+     *
+     * @param f The image file
+     * @return The image read, or null if the file is not an image
+     * @throws IOException If the file can not be read
+     */
+    private BufferedImage readImage(File f) throws IOException {
+        return rasterCache != null ? rasterCache.read(f) : ImageIO.read(f);
+    }
+
+    /**
+     * Get the approximate size of a character's sprites in memory
+     *
+     * @param c The character to measure
+     * @return The size of all the character's expressions in bytes, counting pixels shared between expressions once
+     */
+    private static long sizeOf(Character c) {
+        long bytes = 0;
+        Set<DataBuffer> counted = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (BufferedImage img : c.getImages().values()) {
+            if (img != null && counted.add(img.getRaster().getDataBuffer())) {
+                bytes += AssetCache.sizeOf(img);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * List the files in a directory
+     *
+     * @param dir The directory to list
+     * @return The files in the directory, empty if it can not be read
+     */
+    private static File[] listFiles(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            System.err.println("Error loading directory: " + dir.getPath());
+            return new File[0];
+        }
+        return files;
     }
 
     /**
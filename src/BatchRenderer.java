@@ -0,0 +1,241 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BatchRenderer.java
+ * Renders many conversations to comics in a single JVM, sharing the loaded assets between them.
+ * Conversations are rendered concurrently by a fixed number of jobs fed from a bounded queue, and each job writes to
+ * its own file, so one failing conversation does not stop or corrupt the others
+ */
+public class BatchRenderer {
+
+    /**
+     * The maximum number of panels per row of each comic
+     */
+    private static final int WIDTH = 4;
+
+    /**
+     * A conversation to render and where to write its comic
+     */
+    public static class Job {
+        private final File in;
+        private final File out;
+
+        /**
+         * Why the job failed, or null if it has not failed
+         */
+        private volatile Throwable error;
+
+        /**
+         * Create a new job
+         *
+         * @param in  The conversation file
+         * @param out The file to write the comic to
+         */
+        public Job(File in, File out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        public File getIn() {
+            return in;
+        }
+
+        public File getOut() {
+            return out;
+        }
+
+        /**
+         * @return Why the job failed, or null if it succeeded or has not yet been rendered
+         */
+        public Throwable getError() {
+            return error;
+        }
+    }
+
+    /**
+     * The pool panels are rendered on, shared between all jobs
+     */
+    private final ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    /**
+     * The number of conversations rendered at once
+     */
+    private final int jobs;
+
+    /**
+     * Create a new batch renderer
+     *
+     * @param jobs The number of conversations to render at once
+     */
+    public BatchRenderer(int jobs) {
+        this.jobs = Math.max(jobs, 1);
+    }
+
+    /**
+     * Create the jobs for a directory of conversations or a manifest listing them.
+     * A manifest has one conversation file per line, optionally followed by a tab and the file to write its comic to.
+     * Relative paths in a manifest are resolved against the manifest's directory. In a directory, comics and partly
+     * written comics are skipped, so the output directory can be the same as the input
+     *
+     * @param source A directory of conversation files or a manifest file
+     * @param outDir The directory to write comics to when no output file is given, named after their conversations
+     * @return The jobs, in order
+     * @throws IOException If the directory or manifest can not be read, or two jobs would write the same file
+     */
+    public static List<Job> createJobs(File source, File outDir) throws IOException {
+        List<Job> result = new ArrayList<>();
+
+        if (source.isDirectory()) {
+            File[] files = source.listFiles(BatchRenderer::isConversation);
+            if (files == null) {
+                throw new IOException("Could not list " + source);
+            }
+            Arrays.sort(files);
+            for (File f : files) {
+                result.add(new Job(f, toOutput(f, outDir)));
+            }
+            checkOutputs(result);
+            return result;
+        }
+
+        File base = source.getAbsoluteFile().getParentFile();
+        try (BufferedReader br = new BufferedReader(new FileReader(source))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.trim().isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                String[] parts = line.split("\t", 2);
+                File in = resolve(base, parts[0].trim());
+                File out = parts.length > 1 ? resolve(base, parts[1].trim()) : toOutput(in, outDir);
+                result.add(new Job(in, out));
+            }
+        }
+        checkOutputs(result);
+        return result;
+    }
+
+    /**
+     * Check that no two jobs write the same file, as they would overwrite each other's partly written comic
+     *
+     * @param batch The jobs
+     * @throws IOException If two jobs write the same file
+     */
+    private static void checkOutputs(List<Job> batch) throws IOException {
+        Map<Path, Job> outputs = new HashMap<>();
+        for (Job job : batch) {
+            Job other = outputs.putIfAbsent(job.getOut().getAbsoluteFile().toPath().normalize(), job);
+            if (other != null) {
+                throw new IOException(other.getIn() + " and " + job.getIn() + " would both be written to "
+                        + job.getOut());
+            }
+        }
+    }
+
+    /**
+     * Render every job, continuing past any that fail
+     *
+     * @param batch The jobs to render
+     * @return The number of jobs that failed
+     * @throws InterruptedIOException If interrupted while waiting for the jobs to finish
+     */
+    public int render(List<Job> batch) throws InterruptedIOException {
+        // a full queue makes the submitting thread render the next job itself, so the queue never grows unbounded
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(jobs, jobs, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(jobs * 2), new ThreadPoolExecutor.CallerRunsPolicy());
+
+        try {
+            for (Job job : batch) {
+                executor.execute(() -> render(job));
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while rendering batch");
+        }
+
+        int failed = 0;
+        for (Job job : batch) {
+            if (job.error != null) {
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Render a single job, recording any failure rather than throwing it.
+     * The comic is written to a temporary file beside the output and only moved into place once complete
+     *
+     * @param job The job to render
+     */
+    private void render(Job job) {
+        File part = new File(job.out.getPath() + ".part");
+        try {
+            File dir = job.out.getAbsoluteFile().getParentFile();
+            if (dir != null) {
+                Files.createDirectories(dir.toPath());
+            }
+
+            try (BufferedReader br = new BufferedReader(new FileReader(job.in));
+                 FileChannel out = FileChannel.open(part.toPath(), StandardOpenOption.CREATE,
+                         StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ComicWriter c = new ComicWriter(out, WIDTH);
+                new Conversation().toImages(br, pool, 2, c);
+                c.close();
+            }
+
+            Files.move(part.toPath(), job.out.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception | OutOfMemoryError e) {
+            job.error = e;
+            System.err.println("Error rendering " + job.in + ": " + e.getLocalizedMessage());
+            part.delete();
+        }
+    }
+
+    /**
+     * Check whether a file in a directory of conversations is a conversation, rather than a hidden file, a comic or a
+     * partly written comic
+     */
+    private static boolean isConversation(File f) {
+        String name = f.getName();
+        return f.isFile() && !name.startsWith(".") && !name.endsWith(".png") && !name.endsWith(".part");
+    }
+
+    private static File resolve(File base, String path) {
+        File f = new File(path);
+        return f.isAbsolute() ? f : new File(base, path);
+    }
+
+    private static File toOutput(File in, File outDir) {
+        String name = in.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(outDir, (dot > 0 ? name.substring(0, dot) : name) + ".png");
+    }
+}
@@ -3,8 +3,13 @@ import java.awt.font.FontRenderContext;
 import java.awt.font.TextLayout;
 import java.awt.geom.Rectangle2D;
 import java.awt.geom.RoundRectangle2D;
+import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Bubbletext.java
@@ -34,15 +39,77 @@ public class BubbleText {
 
 
     /**
-     * An array of lines of the input text split to fit to a certain width
+     * The maximum number of line bounds kept by the measurement cache
      */
-    private String[] newString;
+    public static final int MAX_CACHED_BOUNDS = 1024;
 
     /**
-     * A string of the longest line that is in the speech bubble
+     * A least recently used cache of the bounds of measured lines, shared between all speech bubbles
+     */
+    private static final Map<LineKey, Rectangle2D> lineBounds = Collections.synchronizedMap(
+            new LinkedHashMap<LineKey, Rectangle2D>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<LineKey, Rectangle2D> eldest) {
+                    return size() > MAX_CACHED_BOUNDS;
+                }
+            });
+
+    /**
+     * The maximum number of bubble backgrounds kept by the chrome cache
+     */
+    public static final int MAX_CACHED_CHROME = 256;
+
+    /**
+     * The space around a cached bubble background for the outline to spill into, in pixels
+     */
+    private static final int CHROME_PADDING = 2;
+
+    /**
+     * The height of the tail below the bubble in pixels
+     */
+    private static final int TAIL_HEIGHT = 30;
+
+    /**
+     * A least recently used cache of pre-rendered bubble backgrounds, keyed by size and direction
+     */
+    private static final Map<String, BufferedImage> chrome = Collections.synchronizedMap(
+            new LinkedHashMap<String, BufferedImage>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, BufferedImage> eldest) {
+                    return size() > MAX_CACHED_CHROME;
+                }
+            });
+
+    /**
+     * Line break offsets reused by each thread while wrapping text
+     */
+    private static final ThreadLocal<int[]> breaks = ThreadLocal.withInitial(() -> new int[64]);
+
+    /**
+     * The upper case text the lines of the speech bubble are taken from
+     */
+    private String text;
+
+    /**
+     * The start and end offsets into the text of each line, split to fit to a certain width
+     */
+    private int[] lines;
+
+    /**
+     * The index of the widest line that is in the speech bubble
+     */
+    private int maxLineIndex;
+
+    /**
+     * A string of the widest line that is in the speech bubble, created when first measured
      */
     private String maxLine;
 
+    /**
+     * The advances the lines were wrapped by, which also find the widest line
+     */
+    private GlyphAdvances advances;
+
     /**
      * The maximum number of characters wide the speech bubble will be
      */
@@ -67,15 +134,67 @@ public class BubbleText {
     }
 
     /**
-     * Creates a new speech bubble with the specified text and maximum line length
+     * Identifies a line measured in a particular font and rendering context
+     */
+    private static class LineKey {
+        final String line;
+        final Font font;
+        final FontRenderContext frc;
+
+        LineKey(String line, Font font, FontRenderContext frc) {
+            this.line = line;
+            this.font = font;
+            this.frc = frc;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            LineKey key = (LineKey) o;
+
+            return line.equals(key.line) && font.equals(key.font) && frc.equals(key.frc);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * line.hashCode() + font.hashCode()) + frc.hashCode();
+        }
+    }
+
+    /**
+     * Creates a new speech bubble from part of the specified text, wrapped to a maximum line length
+     *
+     * @param text       The upper case text encompassed by this speech bubble
+     * @param from       The offset of the start of this speech bubble's text
+     * @param to         The offset of the end of this speech bubble's text
+     * @param lineLength The maximum number of characters wide the speech bubble will be
+     * @param advances   The advances of the characters, to wrap by width rather than number of characters
+     */
+    private BubbleText(String text, int from, int to, int lineLength, GlyphAdvances advances) {
+        this.text = text;
+        this.lineLength = lineLength;
+        this.advances = advances;
+        int count = breakLines(text, from, to, lineLength * advances.getAverage(), advances);
+        this.lines = Arrays.copyOf(breaks.get(), 2 * count);
+        findMaxLine();
+    }
+
+    /**
+     * Creates a new speech bubble from lines that have already been wrapped
      *
-     * @param text       The text encompassed by this speech bubble
+     * @param text       The upper case text encompassed by this speech bubble
+     * @param lines      The start and end offsets into the text of each line
      * @param lineLength The maximum number of characters wide the speech bubble will be
+     * @param advances   The advances the lines were wrapped by
      */
-    private BubbleText(String text, int lineLength) {
+    private BubbleText(String text, int[] lines, int lineLength, GlyphAdvances advances) {
+        this.text = text;
         this.lineLength = lineLength;
-        this.maxLine = "";
-        this.newString = splitLine(text.toUpperCase());
+        this.advances = advances;
+        this.lines = lines;
+        findMaxLine();
     }
 
     /**
@@ -87,36 +206,94 @@ public class BubbleText {
      * @param point The direction to point the speech bubble towards
      */
     public void draw(Graphics2D ga, double posX, double posY, Pointing point) {
+        draw(ga, layout(ga.getFontRenderContext(), ga.getFont(), posX, posY, point));
+    }
 
-        FontRenderContext frc = ga.getFontRenderContext();
-        Rectangle2D layout = this.getMaxLineBounds(frc, ga.getFont());
-        ga.setStroke(stroke);
-
+    /**
+     * Work out where this speech bubble and each of its lines go, without drawing anything
+     *
+     * @param frc   The rendering context the speech bubble will be drawn in
+     * @param font  The font the speech bubble will be drawn in
+     * @param posX  The X position to draw to
+     * @param posY  The Y position to draw to
+     * @param point The direction to point the speech bubble towards
+     * @return The placement of the speech bubble, snapped to whole pixels
+     */
+    public Scene.Bubble layout(FontRenderContext frc, Font font, double posX, double posY, Pointing point) {
+        Rectangle2D layout = this.getMaxLineBounds(frc, font);
         double bX = posX;
         double bY = (posY - layout.getHeight());
         double bW = layout.getWidth() + 2 * X_PADDING;
         double bH = (getNumberOfLines() * layout.getHeight() + 0.5) + Y_PADDING;
 
+        int[] baselines = new int[getNumberOfLines()];
+        for (int i = 0; i < baselines.length; i++) {
+            baselines[i] = (int) ((posY + 5) + i * layout.getHeight() + 0.5);
+        }
+        return new Scene.Bubble((int) Math.round(bX), (int) Math.round(bY), (int) Math.round(bW),
+                (int) Math.round(bH), point, text, lines, (int) posX + 5, baselines);
+    }
+
+    /**
+     * Draw a speech bubble that has been laid out into an existing graphics context, in the context's font
+     *
+     * @param ga     The graphics to draw into
+     * @param bubble The placement of the speech bubble
+     */
+    public static void draw(Graphics2D ga, Scene.Bubble bubble) {
+        ga.drawImage(getChrome(bubble.getWidth(), bubble.getHeight(), bubble.getPoint()),
+                bubble.getX() - CHROME_PADDING, bubble.getY() - CHROME_PADDING, null);
+
+        ga.setPaint(Color.BLACK);
+        char[] text = bubble.getText().toCharArray();
+        for (int i = 0; i < bubble.getNumberOfLines(); i++) {
+            int start = bubble.getLineStart(i);
+            ga.drawChars(text, start, bubble.getLineEnd(i) - start, bubble.getTextX(), bubble.getTextY(i));
+        }
+    }
+
+    /**
+     * Get the background of a speech bubble, its tail and outlined rounded rectangle, rendering it only if
+     * no bubble of the same size and direction has been drawn before. The bubble is snapped to whole pixels
+     *
+     * @param bW    The width of the bubble
+     * @param bH    The height of the bubble, not including the tail
+     * @param point The direction the bubble points towards
+     * @return The shared background image, offset by {@link #CHROME_PADDING} from the top left of the bubble
+     */
+    private static BufferedImage getChrome(int bW, int bH, Pointing point) {
+        String key = bW + "x" + bH + point.name();
+        BufferedImage result = chrome.get(key);
+        Metrics.lookup(Metrics.Cache.BUBBLE_CHROME, result != null);
+        if (result != null) {
+            return result;
+        }
+
+        result = Compositor.create(bW + 2 * CHROME_PADDING, bH + TAIL_HEIGHT + 2 * CHROME_PADDING);
+        Metrics.image(result);
+        Graphics2D ga = result.createGraphics();
+        ga.translate(CHROME_PADDING, CHROME_PADDING);
+        ga.setStroke(stroke);
+
         Polygon p = new Polygon();
-        p.addPoint((int) (bX + bW * point.a), (int) (bY + bH - 1));
-        p.addPoint((int) (bX + bW * point.b), (int) (bY + bH - 1));
-        p.addPoint((int) (bX + bW * point.c), (int) (bY + bH + 30));
+        p.addPoint((int) (bW * point.a), bH - 1);
+        p.addPoint((int) (bW * point.b), bH - 1);
+        p.addPoint((int) (bW * point.c), bH + TAIL_HEIGHT);
         ga.setPaint(Color.WHITE);
         ga.fill(p);
         ga.setColor(Color.BLACK);
 
         ga.draw(p);
 
-        RoundRectangle2D main = new RoundRectangle2D.Double(bX, bY, bW, bH, 10, 10);
+        RoundRectangle2D main = new RoundRectangle2D.Double(0, 0, bW, bH, 10, 10);
         ga.setPaint(Color.WHITE);
         ga.fill(main);
         ga.setColor(Color.BLACK);
         ga.draw(main);
 
-        ga.setPaint(Color.BLACK);
-        for (int i = 0; i < newString.length; i++) {
-            ga.drawString(newString[i], (int) posX + 5, (int) ((posY + 5) + i * layout.getHeight() + 0.5));
-        }
+        ga.dispose();
+        chrome.put(key, result);
+        return result;
     }
 
     /**
@@ -125,7 +302,21 @@ public class BubbleText {
      * @return An array of lines contained by the speech bubble
      */
     public String[] getNewString() {
-        return newString;
+        String[] result = new String[getNumberOfLines()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = getLine(i);
+        }
+        return result;
+    }
+
+    /**
+     * Get a single line of the transformed text
+     *
+     * @param i The index of the line
+     * @return The line
+     */
+    private String getLine(int i) {
+        return text.substring(lines[2 * i], lines[2 * i + 1]);
     }
 
     /**
@@ -134,18 +325,42 @@ public class BubbleText {
      * @return The number of lines in this speech bubble
      */
     public int getNumberOfLines() {
-        return newString.length;
+        return lines.length / 2;
     }
 
     /**
-     * Get the bounds of the longest line in the speech bubble
+     * Get the bounds of the widest line in the speech bubble
      *
      * @param frc  The rendering context to make the calculation
      * @param font The font to calculate for
-     * @return A rectangle that bounds the longest line
+     * @return A rectangle that bounds the widest line
      */
     private Rectangle2D getMaxLineBounds(FontRenderContext frc, Font font) {
-        Rectangle2D result = new TextLayout(maxLine, font, frc).getBounds();
+        if (maxLine == null) {
+            maxLine = getLine(maxLineIndex);
+        }
+        return getLineBounds(maxLine, font, frc);
+    }
+
+    /**
+     * Get the bounds of a single line, measuring it only if it has not been measured before.
+     * The bounds returned are shared and must not be modified
+     *
+     * @param line The line to measure
+     * @param font The font to calculate for
+     * @param frc  The rendering context to make the calculation
+     * @return A rectangle that bounds the line
+     */
+    private static Rectangle2D getLineBounds(String line, Font font, FontRenderContext frc) {
+        LineKey key = new LineKey(line, font, frc);
+        Rectangle2D result = lineBounds.get(key);
+        Metrics.lookup(Metrics.Cache.LINE_BOUNDS, result != null);
+
+        if (result == null) {
+            result = new TextLayout(line, font, frc).getBounds();
+            lineBounds.put(key, result);
+        }
+
         return result;
     }
 
@@ -156,11 +371,21 @@ public class BubbleText {
      * @return A rectangle representing the bounds of this speech bubble
      */
     public Rectangle2D getBounds(Graphics2D ga) {
-        FontRenderContext frc = ga.getFontRenderContext();
-        Rectangle2D result = new TextLayout(maxLine, ga.getFont(), frc).getBounds();
+        return getBounds(ga.getFontRenderContext(), ga.getFont());
+    }
+
+    /**
+     * Get the bounds for the entire speech bubble without a graphics context
+     *
+     * @param frc  The rendering context to make the calculation
+     * @param font The font to calculate for
+     * @return A rectangle representing the bounds of this speech bubble
+     */
+    public Rectangle2D getBounds(FontRenderContext frc, Font font) {
+        Rectangle2D result = getMaxLineBounds(frc, font);
 
         return new Rectangle2D.Double(result.getX(), result.getY(),
-                result.getWidth() + X_PADDING, (newString.length * result.getHeight() + 0.5) + Y_PADDING);
+                result.getWidth() + X_PADDING, (getNumberOfLines() * result.getHeight() + 0.5) + Y_PADDING);
     }
 
 
@@ -172,14 +397,41 @@ public class BubbleText {
      * @return A list of speech bubbles generated from the input text
      */
     public static List<BubbleText> createText(String text, boolean monolouge) {
+        return createText(text, monolouge, GlyphAdvances.CHARACTERS);
+    }
+
+    /**
+     * Creates a speech bubble from the input text, wrapping lines by their width in pixels rather than number of characters.
+     * Each line is no wider than the same number of average width upper case letters,
+     * so narrow letters fit more per line and wide letters no longer overflow
+     *
+     * @param text      The text to be inside this speech bubble
+     * @param monolouge Whether the speech bubble represents a single speech or a small reply in conversation
+     * @param font      The font the speech bubble will be drawn in
+     * @param frc       The rendering context the speech bubble will be drawn in
+     * @return A list of speech bubbles generated from the input text
+     */
+    public static List<BubbleText> createText(String text, boolean monolouge, Font font, FontRenderContext frc) {
+        return createText(text, monolouge, GlyphAdvances.get(font, frc));
+    }
+
+    /**
+     * Creates a speech bubble from the input text, splits into multiple speech bubbles if necessary
+     *
+     * @param text      The text to be inside this speech bubble
+     * @param monolouge Whether the speech bubble represents a single speech or a small reply in conversation
+     * @param advances  The advances of the characters to measure the width of each line with
+     * @return A list of speech bubbles generated from the input text
+     */
+    private static List<BubbleText> createText(String text, boolean monolouge, GlyphAdvances advances) {
         List<BubbleText> result = new ArrayList<>();
-        BubbleText t = new BubbleText(text, monolouge ? 26 : 13);
+        String upper = text.toUpperCase();
+        BubbleText t = new BubbleText(upper, 0, upper.length(), monolouge ? 26 : 13, advances);
 
         while (true) {
             if (t.getNumberOfLines() > MAX_LINES) {
-                String[] overflow = t.getNewString();
-                result.add(new BubbleText(createString(overflow, 0, MAX_LINES), t.lineLength));
-                t = new BubbleText(createString(overflow, MAX_LINES, t.getNewString().length), 26);
+                result.add(new BubbleText(upper, Arrays.copyOf(t.lines, 2 * MAX_LINES), t.lineLength, advances));
+                t = new BubbleText(upper, t.lines[2 * MAX_LINES], t.lines[t.lines.length - 1], 26, advances);
             } else {
                 result.add(t);
                 break;
@@ -190,38 +442,87 @@ public class BubbleText {
     }
 
     /**
-     * Join a string array with spaces
-     *
-     * @param allLines The array to join
-     * @param start    The starting index of the array
-     * @param end      The ending index of the array
-     * @return The joined string
-     */
-    private static String createString(String[] allLines, int start, int end) {
-        StringBuilder sb = new StringBuilder();
-        for (int i = start; i < end; i++) {
-            sb.append(allLines[i]);
-            sb.append(" ");
+     * Find the first of the widest lines in the speech bubble, by the advances its lines were wrapped by. When wrapping
+     * by number of characters this is the line with the most characters, and when wrapping by pixels it is the line
+     * that is widest when drawn, which may have fewer characters than another
+     */
+    private void findMaxLine() {
+        float max = 0;
+        for (int i = 0; i < getNumberOfLines(); i++) {
+            float width = 0;
+            for (int j = lines[2 * i]; j < lines[2 * i + 1]; j++) {
+                width += advances.advance(text.charAt(j));
+            }
+            if (width > max) {
+                max = width;
+                maxLineIndex = i;
+            }
         }
-        return sb.toString().substring(0, sb.length() - 2);
     }
 
     /**
-     * Split the input string into multiple lines to conform to the max line length
+     * Break part of a string into lines no wider than the wrap width, breaking at spaces where possible
+     * and breaking long words otherwise. Counting every character as one, this breaks in the same way as {@link #wrap}.
+     * The start and end offset of each line is written into this thread's {@link #breaks} buffer
      *
-     * @param in The input string
-     * @return An array of lines split appropriately
+     * @param str       The string to break
+     * @param from      The offset of the start of the part to break
+     * @param to        The offset of the end of the part to break
+     * @param wrapWidth The maximum width of each line
+     * @param advances  The advances of the characters to measure the width of each line with
+     * @return The number of lines
      */
-    private String[] splitLine(String in) {
-        String line = wrap(in, lineLength, "\n", true);
-        String[] allLines = line.split("\n");
+    private static int breakLines(String str, int from, int to, float wrapWidth, GlyphAdvances advances) {
+        // every line but the last starts with a character, so there can be no more lines than characters plus one
+        int[] result = breaks.get();
+        if (result.length < 2 * (to - from + 1)) {
+            result = new int[2 * (to - from + 1)];
+            breaks.set(result);
+        }
 
-        for (String s : allLines) {
-            if (s.length() > maxLine.length()) {
-                maxLine = s;
+        int count = 0;
+        int offset = from;
+        while (offset < to) {
+            if (str.charAt(offset) == ' ') {
+                offset++;
+                continue;
             }
+
+            // find where the line would end without breaking at a space, always fitting at least one character
+            int end = offset + 1;
+            float width = advances.advance(str.charAt(offset));
+            while (end < to && width + advances.advance(str.charAt(end)) <= wrapWidth) {
+                width += advances.advance(str.charAt(end));
+                end++;
+            }
+
+            // only last line without leading spaces is left
+            if (end == to) {
+                break;
+            }
+            int spaceToWrapAt = str.lastIndexOf(' ', end);
+
+            result[2 * count] = offset;
+            if (spaceToWrapAt >= offset) {
+                // normal case
+                result[2 * count + 1] = spaceToWrapAt;
+                offset = spaceToWrapAt + 1;
+            } else {
+                // really long word or URL, wrap it one line at a time
+                result[2 * count + 1] = end;
+                offset = end;
+            }
+            count++;
+        }
+
+        // whatever is left is short enough to be the last line, unless it is empty and not the only line
+        if (offset < to || count == 0) {
+            result[2 * count] = Math.min(offset, to);
+            result[2 * count + 1] = to;
+            count++;
         }
-        return allLines;
+
+        return count;
     }
 
     // Taken from org.apache.commons.lang3.text.WordUtils
@@ -1,4 +1,6 @@
 import java.awt.image.BufferedImage;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
@@ -17,6 +19,22 @@ public class Character implements Comparable{
      */
     private Map<String, BufferedImage> sprites;
 
+    /**
+     * The maximum number of transformed sprites kept for this character
+     */
+    public static final int MAX_VARIANTS = 16;
+
+    /**
+     * A least recently used cache of zoomed and flipped sprites, keyed by expression, zoom level and flip
+     */
+    private final Map<String, BufferedImage> variants = Collections.synchronizedMap(
+            new LinkedHashMap<String, BufferedImage>(MAX_VARIANTS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, BufferedImage> eldest) {
+                    return size() > MAX_VARIANTS;
+                }
+            });
+
     /**
      * Creates a new character
      * @param name The name of the character
@@ -27,6 +45,14 @@ public class Character implements Comparable{
         this.sprites = sprites;
     }
 
+    /**
+     * Get the name of this character
+     * @return The name of the character
+     */
+    public String getName() {
+        return name;
+    }
+
     /**
      * Get all the expressions associated with this character
      * @return
@@ -44,6 +70,34 @@ public class Character implements Comparable{
         return sprites.get(expression);
     }
 
+    /**
+     * Get a specific image of the character zoomed to a level and optionally flipped.
+     * The result is cached and shared between callers so it must not be drawn into
+     * @param expression The name of the expression
+     * @param level The zoom level, as used by {@link Conversation#toZoomed}
+     * @param flip Whether to flip the image horizontally
+     * @return The transformed image, or null if the expression does not exist
+     */
+    public BufferedImage getImage(String expression, int level, boolean flip) {
+        String key = expression + "/" + level + "/" + flip;
+        BufferedImage result = variants.get(key);
+        Metrics.lookup(Metrics.Cache.SPRITES, result != null);
+
+        if (result == null) {
+            BufferedImage src = getImage(expression);
+            if (src == null) {
+                return null;
+            }
+            long start = Metrics.start();
+            result = Compositor.toCanonical(Conversation.toZoomed(level, src, flip));
+            Metrics.stop(Metrics.Stage.SPRITE, start);
+            Metrics.image(result);
+            variants.put(key, result);
+        }
+
+        return result;
+    }
+
     @Override
     public int compareTo(Object o) {
         return 0;
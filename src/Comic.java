@@ -1,5 +1,4 @@
 import java.awt.*;
-import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.util.List;
 
@@ -51,87 +50,50 @@ public class Comic {
      * @return A BufferedImage of the final comic
      */
     public BufferedImage toImage() {
-        BufferedImage result = getBlankCanvas();
+        long start = Metrics.start();
+        Scene.Strip strip = layout();
+        BufferedImage result = getBlankCanvas(strip);
         Graphics2D ga = (Graphics2D) result.getGraphics();
         ga.setStroke(stroke);
+        ga.setColor(Color.BLACK);
 
-        double currX = X_PADDING;
-        double currY = Y_PADDING;
-        double rowHeight = 0;
-
+        // every panel's rectangle is known up front, so the panels could be drawn in any order
         for (int i = 0; i < panels.size(); i++) {
-            BufferedImage thisPanel = panels.get(i);
-            ga.drawImage(thisPanel, (int) currX, (int) currY, null);
-
-            Rectangle2D main = new Rectangle2D.Double(currX, currY, thisPanel.getWidth(), thisPanel.getHeight());
-            ga.setColor(Color.BLACK);
-            ga.draw(main);
-
-
-            currX += thisPanel.getWidth() + X_PADDING;
-
-            if (thisPanel.getHeight() > rowHeight) {
-                rowHeight = thisPanel.getHeight();
-            }
-
-            if ((i + 1) % (width) == 0) {
-                currX = X_PADDING;
-                currY += rowHeight + Y_PADDING;
-
-            }
+            Rectangle frame = strip.getFrame(i);
+            Compositor.draw(panels.get(i), result, frame.x, frame.y);
+            ga.draw(frame);
         }
 
         ga.dispose();
+        Metrics.stop(Metrics.Stage.STRIP, start);
         return result;
     }
 
     /**
-     * Calculate the final size of the comic and create a BufferedImage to act as a canvas
+     * Work out where each panel goes in the comic, and the size of the comic
      *
-     * @return The blank comic image (no panels)
+     * @return The layout of the comic
      */
-    private BufferedImage getBlankCanvas() {
-        double maxWidth = 0;
-        double totalHeight = Y_PADDING;
-
-        int rowWidth = 0;
-        int rowHeight = 0;
-        int rows = 0;
-        int i;
-
-        for (i = 0; i < panels.size(); i++) {
-            BufferedImage img = panels.get(i);
-            rowWidth += img.getWidth() + X_PADDING;
-
-            if (img.getHeight() > rowHeight) {
-                rowHeight = img.getHeight();
-            }
-
-            if ((i + 1) % (width) == 0) {
-                if (rowWidth > maxWidth) {
-                    maxWidth = rowWidth;
-                }
-
-                totalHeight += rowHeight + Y_PADDING;
-                rowWidth = 0;
-                rowHeight = 0;
-                rows++;
-            }
-
-        }
-
-        if (rows == 0) {
-            maxWidth += rowWidth;
-        }
-        if ((i % width) != 0) {
-            totalHeight += rowHeight + Y_PADDING;
+    public Scene.Strip layout() {
+        int[] widths = new int[panels.size()];
+        int[] heights = new int[panels.size()];
+        for (int i = 0; i < widths.length; i++) {
+            widths[i] = panels.get(i).getWidth();
+            heights[i] = panels.get(i).getHeight();
         }
+        return new Scene.Strip(widths, heights, width);
+    }
 
-
-        maxWidth += X_PADDING;
-
-        BufferedImage result = new BufferedImage((int) maxWidth, (int) totalHeight, BufferedImage.TYPE_INT_RGB);
-        result.getGraphics().fillRect(0, 0, (int) maxWidth, (int) totalHeight);
+    /**
+     * Create a BufferedImage the size of the comic to act as a canvas
+     *
+     * @param strip The layout of the comic
+     * @return The blank comic image (no panels)
+     */
+    private static BufferedImage getBlankCanvas(Scene.Strip strip) {
+        BufferedImage result = new BufferedImage(strip.getWidth(), strip.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Metrics.image(result);
+        result.getGraphics().fillRect(0, 0, strip.getWidth(), strip.getHeight());
         return result;
     }
 }
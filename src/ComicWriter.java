@@ -0,0 +1,227 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * ComicWriter.java
+ * Writes a comic strip to a PNG one row of panels at a time, so only the current row is ever held in memory.
+ * The result has the same layout as {@link Comic#toImage()}, with each panel placed by a {@link Scene.Strip}.
+ * If the panels are not known up front each row is laid out as it completes, and the width of the comic is fixed by
+ * its first row, so all panels are expected to be the same size
+ */
+public class ComicWriter implements Consumer<BufferedImage>, Closeable {
+
+    /**
+     * The channel to write the comic to
+     */
+    private final WritableByteChannel out;
+
+    /**
+     * The maximum number of panels per row, if the panels are not known up front
+     */
+    private final int width;
+
+    /**
+     * Where every panel goes, or null if the panels are not known up front
+     */
+    private final Scene.Strip strip;
+
+    /**
+     * The panels of the current row
+     */
+    private List<BufferedImage> row = new ArrayList<>();
+
+    /**
+     * The outlines of the panels in the previous row, which overlap the padding above the current row
+     */
+    private List<Rectangle> previous = Collections.emptyList();
+
+    /**
+     * Encodes the comic, created once the width of the first row is known
+     */
+    private PngWriter png;
+
+    /**
+     * The Y position of the top of the padding above the current row
+     */
+    private int top;
+
+    /**
+     * The number of panels in the rows already written
+     */
+    private int written;
+
+    /**
+     * Create a new comic writer for panels that arrive one at a time, writing the height of the comic once closed
+     *
+     * @param out   The file to write the comic to, opened for reading and writing
+     * @param width The maximum number of panels per row in the comic
+     */
+    public ComicWriter(FileChannel out, int width) {
+        this.out = out;
+        this.width = width;
+        this.strip = null;
+    }
+
+    /**
+     * Create a new comic writer for panels that have already been laid out, so the height of the comic is written up
+     * front and the channel does not need to seek
+     *
+     * @param out   The channel to write the comic to
+     * @param strip Where every panel goes, which the panels must be added in the order of
+     */
+    public ComicWriter(WritableByteChannel out, Scene.Strip strip) {
+        this.out = out;
+        this.width = 0;
+        this.strip = strip;
+    }
+
+    /**
+     * Add the next panel to the comic
+     *
+     * @param panel The image of the panel
+     * @throws UncheckedIOException  If a completed row can not be written
+     * @throws IllegalStateException If the comic was laid out for fewer panels
+     */
+    @Override
+    public void accept(BufferedImage panel) {
+        int i = written + row.size();
+        if (strip != null && i >= strip.size()) {
+            throw new IllegalStateException("The comic was laid out for only " + strip.size() + " panels");
+        }
+
+        row.add(panel);
+        boolean last = strip != null
+                ? i == strip.size() - 1 || strip.getFrame(i + 1).y != strip.getFrame(i).y
+                : row.size() == width;
+        if (last) {
+            try {
+                writeRow();
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }
+    }
+
+    /**
+     * Write any remaining panels and finish the comic
+     *
+     * @throws IOException If the comic can not be written, or was laid out for more panels than were added
+     */
+    @Override
+    public void close() throws IOException {
+        if (!row.isEmpty()) {
+            writeRow();
+        }
+        if (strip != null && written != strip.size()) {
+            throw new IOException("The comic was laid out for " + strip.size() + " panels but only " + written
+                    + " were added");
+        }
+        if (png == null) {
+            png = strip != null
+                    ? new PngWriter(out, strip.getWidth(), strip.getHeight())
+                    : new PngWriter(out, (int) Comic.X_PADDING, -1);
+        }
+
+        // the bottom padding, overlapped by the last row's outlines
+        png.write(drawStrip(top, (int) Comic.Y_PADDING));
+        png.close();
+    }
+
+    /**
+     * Draw the current row with the padding above it and write it to the comic
+     *
+     * @throws IOException If the row can not be written
+     */
+    private void writeRow() throws IOException {
+        long start = Metrics.start();
+
+        // a strip of just this row starts at the top of the comic, so is moved down to the current row
+        Scene.Strip layout = strip != null ? strip : layoutRow();
+        int first = strip != null ? written : 0;
+        int shift = strip != null ? 0 : top;
+        List<Rectangle> frames = new ArrayList<>(row.size());
+        for (int i = 0; i < row.size(); i++) {
+            Rectangle frame = layout.getFrame(first + i);
+            frame.translate(0, shift);
+            frames.add(frame);
+        }
+
+        if (png == null) {
+            png = new PngWriter(out, layout.getWidth(), strip != null ? strip.getHeight() : -1);
+        }
+
+        int bottom = top;
+        for (Rectangle frame : frames) {
+            bottom = Math.max(bottom, frame.y + frame.height);
+        }
+
+        BufferedImage image = drawStrip(top, bottom - top);
+        Graphics2D ga = (Graphics2D) image.getGraphics();
+        ga.translate(0, -top);
+        ga.setStroke(Comic.stroke);
+        ga.setColor(Color.BLACK);
+
+        for (int i = 0; i < row.size(); i++) {
+            Rectangle frame = frames.get(i);
+            Compositor.draw(row.get(i), image, frame.x, frame.y - top);
+            ga.draw(frame);
+        }
+        ga.dispose();
+        Metrics.stop(Metrics.Stage.STRIP, start);
+
+        png.write(image);
+
+        previous = frames;
+        written += row.size();
+        row.clear();
+        top = bottom;
+    }
+
+    /**
+     * Lay out the current row on its own, as the first row of a strip
+     *
+     * @return The layout of the row
+     */
+    private Scene.Strip layoutRow() {
+        int[] widths = new int[row.size()];
+        int[] heights = new int[row.size()];
+        for (int i = 0; i < widths.length; i++) {
+            widths[i] = row.get(i).getWidth();
+            heights[i] = row.get(i).getHeight();
+        }
+        return new Scene.Strip(widths, heights, width);
+    }
+
+    /**
+     * Create a blank horizontal strip of the comic, including the outlines of the previous row
+     *
+     * @param top    The Y position of the top of the strip in the comic
+     * @param height The height of the strip
+     * @return The blank strip
+     */
+    private BufferedImage drawStrip(int top, int height) {
+        BufferedImage image = new BufferedImage(png.getWidth(), height, BufferedImage.TYPE_INT_RGB);
+        Metrics.image(image);
+        Graphics2D ga = (Graphics2D) image.getGraphics();
+        ga.fillRect(0, 0, image.getWidth(), height);
+
+        ga.translate(0, -top);
+        ga.setStroke(Comic.stroke);
+        ga.setColor(Color.BLACK);
+        for (Rectangle outline : previous) {
+            ga.draw(outline);
+        }
+
+        ga.dispose();
+        return image;
+    }
+}
@@ -1,10 +1,17 @@
 import java.awt.*;
+import java.awt.font.FontRenderContext;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.IOException;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
 /**
  * Conversation.java
@@ -32,6 +39,41 @@ public class Conversation {
         }
     }
 
+    /**
+     * The system property used to choose how speech bubbles are wrapped, either "characters" (the default) or "pixels"
+     */
+    public static final String WRAP_PROPERTY = "mschat.wrap";
+
+    /**
+     * Whether speech bubbles are wrapped by the width of their lines in pixels rather than number of characters
+     */
+    private static final boolean WRAP_PIXELS = "pixels".equalsIgnoreCase(System.getProperty(WRAP_PROPERTY));
+
+    /**
+     * The background drawn behind every panel
+     */
+    static final String BACKGROUND = "basket";
+
+    /**
+     * The font speech bubbles are written in
+     */
+    static final String FONT = "ldfcomicsansb";
+
+    /**
+     * The expression every character is drawn with
+     */
+    static final String EXPRESSION = "neutral";
+
+    /**
+     * The cache of rendered panels, or null if every panel is rendered
+     */
+    private static final PanelCache panelCache = PanelCache.fromProperties();
+
+    /**
+     * The rendering context panels are drawn in, which speech bubbles are measured in before any panel is drawn
+     */
+    private static final FontRenderContext FRC = createFontRenderContext();
+
     /**
      * A map of all participants in the conversation
      */
@@ -50,10 +92,17 @@ public class Conversation {
      * @param lines The comma separated list of messages
      */
     public Conversation(List<String> lines) {
+        this();
+        init(lines);
+    }
+
+    /**
+     * Creates a new empty conversation, for streaming messages through
+     * {@link #toImages(BufferedReader, ExecutorService, int, Consumer)}
+     */
+    public Conversation() {
         participants = new TreeMap<>();
         messages = new ArrayList<>();
-        init(lines);
-        assignCharacters();
     }
 
     /**
@@ -63,54 +112,98 @@ public class Conversation {
      */
     private void init(List<String> lines) {
         for (String line : lines) {
-            String nick = line.split(",")[0];
-            String msg = line.substring(line.indexOf(',') + 1);
+            messages.add(parse(line, true));
+        }
+    }
 
-            if (!participants.containsKey(nick)) {
-                participants.put(nick, new Person(nick));
+    /**
+     * Convert a comma separated line into a message, adding its speaker to the participants if they are new
+     *
+     * @param line   The comma separated line
+     * @param assign Whether new speakers are given a character, which is only needed to draw them
+     * @return The message
+     */
+    private Message parse(String line, boolean assign) {
+        long start = Metrics.start();
+        String nick = line.split(",")[0];
+        String msg = line.substring(line.indexOf(',') + 1);
+        Metrics.stop(Metrics.Stage.PARSE, start);
+
+        Person p = participants.get(nick);
+        if (p == null) {
+            p = new Person(nick);
+            if (assign) {
+                assignCharacter(p);
             }
-            Message m = new Message(participants.get(nick), msg);
-            messages.add(m);
+            participants.put(nick, p);
         }
+        return new Message(p, msg);
     }
 
     /**
-     * Assign each participant in the conversation with a character
+     * Assign a participant in the conversation with a character
+     *
+     * @param p The participant
      */
-    private void assignCharacters() {
+    private void assignCharacter(Person p) {
+        long start = Metrics.start();
         AssetLoader ldr = AssetLoader.getInstance();
 
-        for (Person p : participants.values()) {
-            Character c;
-            if (ldr.hasCharacter(p.getNick())) {
-                c = ldr.getCharacter(p.getNick());
-            } else {
-                c = ldr.getRandomCharacter();
-            }
-            p.assignCharacter(c);
+        Character c;
+        if (ldr.hasCharacter(p.getNick())) {
+            c = ldr.getCharacter(p.getNick());
+        } else {
+            c = ldr.getRandomCharacter();
         }
-
+        p.assignCharacter(c);
+        Metrics.stop(Metrics.Stage.ASSIGN, start);
     }
 
     /**
-     * Create all the panels in the comic from the messages in the conversation
-     *
-     * @return A list of images that represent the panels in the comic
+     * A group of messages that are drawn together in a single panel
      */
-    public List<BufferedImage> toImages() {
-        List<BufferedImage> panels = new ArrayList<>();
-        AssetLoader ldr = AssetLoader.getInstance();
-        BufferedImage background = ldr.getBackground("basket");
+    private class Panel {
+        /**
+         * The messages drawn in this panel
+         */
+        List<Message> messages;
 
-        Iterator<Message> it = messages.iterator();
+        /**
+         * Whether each speaker was facing right when this panel was grouped, indexed as messages
+         */
+        boolean[] facing;
+
+        Panel(List<Message> messages) {
+            this.messages = new ArrayList<>(messages);
+            this.facing = new boolean[messages.size()];
+            for (int i = 0; i < facing.length; i++) {
+                facing[i] = messages.get(i).p.isFacingRight();
+            }
+        }
+    }
+
+    /**
+     * Groups messages into panels as they arrive.
+     * The direction each speaker is facing is captured per panel so panels can be rendered in any order
+     */
+    private class PanelGrouper {
+        /**
+         * The messages not yet grouped into a panel
+         */
         List<Message> temp = new ArrayList<>();
-        while (it.hasNext()) {
-            Message m = it.next();
 
+        /**
+         * Add the next message in the conversation
+         *
+         * @param m The message
+         * @return The panel completed by this message, or null if none was
+         */
+        Panel add(Message m) {
+            Panel result = null;
 
             if (temp.size() == 1) {
                 if (m.p.equals(temp.get(0).p)) {
-                    panels.add(messagesToPanel(background, temp));
+                    result = new Panel(temp);
                     temp.clear();
                 }
             }
@@ -118,77 +211,346 @@ public class Conversation {
             if (temp.size() == 2) {
                 temp.get(0).p.setFacing(true);
                 temp.get(1).p.setFacing(false);
-                panels.add(messagesToPanel(background, temp));
+                result = new Panel(temp);
                 temp.clear();
 
             }
 
             temp.add(m);
+            return result;
         }
 
-        if (!temp.isEmpty()) {
-            panels.add(messagesToPanel(background, temp));
+        /**
+         * Finish the conversation
+         *
+         * @return The panel of the remaining messages, or null if there are none
+         */
+        Panel finish() {
+            if (temp.isEmpty()) {
+                return null;
+            }
+
+            Panel result = new Panel(temp);
+            temp.clear();
+            return result;
         }
+    }
 
+    /**
+     * Create all the panels in the comic from the messages in the conversation
+     *
+     * @return A list of images that represent the panels in the comic
+     */
+    public List<BufferedImage> toImages() {
+        List<BufferedImage> panels = new ArrayList<>();
+        BufferedImage background = AssetLoader.getInstance().getBackground(BACKGROUND, 1);
+
+        for (Panel panel : toPanels()) {
+            panels.add(messagesToPanel(background, panel));
+        }
 
         return panels;
     }
 
-    private BufferedImage messagesToPanel(BufferedImage background, List<Message> messages) {
-        int w = background.getWidth();
-        int h = background.getHeight();
-        BufferedImage combined = new BufferedImage(w, w, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D ga = (Graphics2D) combined.getGraphics();
+    /**
+     * Create all the panels in the comic, rendering each panel as a separate task on the given executor.
+     * The panels are returned in conversation order and are identical to those of {@link #toImages()}
+     *
+     * @param executor The executor to render the panels on
+     * @return A list of images that represent the panels in the comic
+     */
+    public List<BufferedImage> toImages(ExecutorService executor) {
+        final BufferedImage background = AssetLoader.getInstance().getBackground(BACKGROUND, 1);
+
+        List<Future<BufferedImage>> futures = new ArrayList<>();
+        for (final Panel panel : toPanels()) {
+            futures.add(executor.submit(() -> messagesToPanel(background, panel)));
+        }
+
+        List<BufferedImage> panels = new ArrayList<>(futures.size());
+        try {
+            for (Future<BufferedImage> f : futures) {
+                panels.add(await(f));
+            }
+        } finally {
+            for (Future<BufferedImage> f : futures) {
+                f.cancel(true);
+            }
+        }
+
+        return panels;
+    }
+
+    /**
+     * Create the panels of a conversation as its lines are read, without keeping the lines or messages.
+     * Each panel is rendered on the given executor as soon as it is complete, and handed to the output in conversation order.
+     * At most window panels are held at once, so memory use does not depend on the length of the conversation
+     *
+     * @param in       The comma separated lines of the conversation, in the format of {@link #Conversation(List)}
+     * @param executor The executor to render the panels on
+     * @param window   The maximum number of panels being rendered or waiting to be output at once
+     * @param out      Receives each panel in conversation order
+     * @throws IOException If the conversation can not be read
+     */
+    public void toImages(BufferedReader in, ExecutorService executor, int window, Consumer<BufferedImage> out)
+            throws IOException {
+        final BufferedImage background = AssetLoader.getInstance().getBackground(BACKGROUND, 1);
+        Deque<Future<BufferedImage>> pending = new ArrayDeque<>();
+        PanelGrouper grouper = new PanelGrouper();
+
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                final Panel panel = grouper.add(parse(line, true));
+                if (panel == null) {
+                    continue;
+                }
+
+                if (pending.size() >= Math.max(window, 1)) {
+                    out.accept(await(pending.poll()));
+                }
+                pending.add(executor.submit(() -> messagesToPanel(background, panel)));
+            }
+
+            final Panel panel = grouper.finish();
+            if (panel != null) {
+                pending.add(executor.submit(() -> messagesToPanel(background, panel)));
+            }
+
+            while (!pending.isEmpty()) {
+                out.accept(await(pending.poll()));
+            }
+        } finally {
+            for (Future<BufferedImage> f : pending) {
+                f.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Count the panels of a conversation as its lines are read, without laying out or drawing them or keeping the
+     * lines. Speakers are not given characters, so no assets are decoded
+     *
+     * @param in The comma separated lines of the conversation, in the format of {@link #Conversation(List)}
+     * @return The number of panels in the comic
+     * @throws IOException If the conversation can not be read
+     */
+    public int countPanels(BufferedReader in) throws IOException {
+        PanelGrouper grouper = new PanelGrouper();
+        int count = 0;
+
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (grouper.add(parse(line, false)) != null) {
+                count++;
+            }
+        }
+
+        if (grouper.finish() != null) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Wait for a panel to finish rendering
+     *
+     * @param f The panel being rendered
+     * @return The image of the panel
+     */
+    private static BufferedImage await(Future<BufferedImage> f) {
+        try {
+            return f.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while rendering panels", ie);
+        } catch (ExecutionException ee) {
+            throw new IllegalStateException("Error rendering panel: " + ee.getCause().getLocalizedMessage(), ee.getCause());
+        }
+    }
+
+    /**
+     * Group the messages in the conversation into panels
+     *
+     * @return A list of panels in conversation order
+     */
+    private List<Panel> toPanels() {
+        List<Panel> panels = new ArrayList<>();
+        PanelGrouper grouper = new PanelGrouper();
+
+        for (Message m : messages) {
+            Panel panel = grouper.add(m);
+            if (panel != null) {
+                panels.add(panel);
+            }
+        }
+
+        Panel panel = grouper.finish();
+        if (panel != null) {
+            panels.add(panel);
+        }
+
+        return panels;
+    }
+
+    /**
+     * Draw a single panel of the comic, reusing it from the {@link PanelCache} if the same panel has been drawn before
+     *
+     * @param background The zoomed background image of the panel, shared between panels
+     * @param panel      The messages to draw and the direction their speakers face
+     * @return The image of the panel, which must not be drawn into if panels are cached
+     */
+    private BufferedImage messagesToPanel(BufferedImage background, Panel panel) {
+        if (panelCache == null) {
+            return drawPanel(background, layoutPanel(background.getWidth(), background.getHeight(), panel));
+        }
+
+        String key = panelKey(panel);
+        BufferedImage result = panelCache.get(key);
+        Metrics.lookup(Metrics.Cache.PANELS, result != null);
+        if (result == null) {
+            result = drawPanel(background, layoutPanel(background.getWidth(), background.getHeight(), panel));
+            panelCache.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * Get the key of a panel in the {@link PanelCache}, from everything that is drawn in it and the files of the assets
+     * it is drawn from
+     *
+     * @param panel The messages of the panel and the direction their speakers face
+     * @return The key of the panel
+     */
+    private static String panelKey(Panel panel) {
+        AssetLoader ldr = AssetLoader.getInstance();
+        List<Object> parts = new ArrayList<>();
+        Collections.addAll(parts, BACKGROUND, ldr.getStamp("background", BACKGROUND, null), 1,
+                FONT, ldr.getStamp("font", FONT, null), EXPRESSION, WRAP_PIXELS, panel.messages.size());
+        for (int i = 0; i < panel.messages.size(); i++) {
+            Message m = panel.messages.get(i);
+            String name = m.p.getCharacter().getName();
+            Collections.addAll(parts, name, ldr.getStamp("character", name, EXPRESSION), panel.facing[i], m.msg);
+        }
+        return PanelCache.key(parts.toArray());
+    }
 
-        ga.setFont(AssetLoader.getInstance().getFont("ldfcomicsansb"));
+    /**
+     * Work out where everything in a single panel goes, measuring its speech bubbles without drawing anything
+     *
+     * @param w     The width of the zoomed background, which is also the width and height of the panel
+     * @param h     The height of the zoomed background
+     * @param panel The messages to lay out and the direction their speakers face
+     * @return The description of the panel
+     */
+    private static Scene.Panel layoutPanel(int w, int h, Panel panel) {
+        long start = Metrics.start();
+        List<Message> messages = panel.messages;
+        Font font = AssetLoader.getInstance().getFont(FONT);
+        List<Scene.Sprite> sprites = new ArrayList<>();
+        List<Scene.Bubble> bubbles = new ArrayList<>();
+        boolean background = false;
 
-        List<BubbleText> list;
         BubbleText line;
         switch (messages.size()) {
 
             case 1:
                 Message msg = messages.get(0);
-                BufferedImage person = toZoomed(1, msg.p.getCharacter().getImage("neutral"), !msg.p.isFacingRight());
+                background = true;
+                sprites.add(new Scene.Sprite(msg.p.getCharacter(), EXPRESSION, 1, !panel.facing[0], -40, h - 200)); //zoomed
 
-                ga.drawImage(backgroundZoom(1, background), 0, 0, null);
-                ga.drawImage(person, -40, h - 200, null); //zoomed
-
-
-                list = BubbleText.createText(msg.msg, true);
-                line = list.get(0);
-                line.draw(ga, 10, 20, BubbleText.Pointing.LEFT);
+                line = createText(msg.msg, true, font).get(0);
+                bubbles.add(line.layout(FRC, font, 10, 20, BubbleText.Pointing.LEFT));
                 break;
             case 2:
             case 3:
             case 4:
                 Message msg1 = messages.get(0);
                 Message msg2 = messages.get(1);
+                background = true;
 
-                BufferedImage person1 = toZoomed(2, msg1.p.getCharacter().getImage("neutral"), false);
-                BufferedImage person2 = toZoomed(2, msg2.p.getCharacter().getImage("neutral"), true);
-
-                ga.drawImage(backgroundZoom(1, background), 0, 0, null);
-                ga.drawImage(person1, 0, 150, null); // left init
-                ga.drawImage(person2, w - 150, 150, null); // right init
+                sprites.add(new Scene.Sprite(msg1.p.getCharacter(), EXPRESSION, 2, false, 0, 150)); // left init
+                sprites.add(new Scene.Sprite(msg2.p.getCharacter(), EXPRESSION, 2, true, w - 150, 150)); // right init
 
-                list = BubbleText.createText(msg1.msg, true);
-                line = list.get(0);
-                line.draw(ga, 10, 20, BubbleText.Pointing.LEFT);
-
-                list = BubbleText.createText(msg2.msg, false);
-                BubbleText line2 = list.get(0);
-                Rectangle2D other = line.getBounds(ga);
-                line2.draw(ga, w - line2.getBounds(ga).getWidth(), other.getY() + other.getHeight() + 40, BubbleText.Pointing.RIGHT);
+                line = createText(msg1.msg, true, font).get(0);
+                bubbles.add(line.layout(FRC, font, 10, 20, BubbleText.Pointing.LEFT));
 
+                BubbleText line2 = createText(msg2.msg, false, font).get(0);
+                Rectangle2D other = line.getBounds(FRC, font);
+                bubbles.add(line2.layout(FRC, font, w - line2.getBounds(FRC, font).getWidth(),
+                        other.getY() + other.getHeight() + 40, BubbleText.Pointing.RIGHT));
                 break;
             default:
                 break;
         }
 
+        Scene.Panel result = new Scene.Panel(w, w, background, sprites, bubbles);
+        Metrics.stop(Metrics.Stage.LAYOUT, start);
+        return result;
+    }
+
+    /**
+     * Draw a single panel of the comic from its description
+     *
+     * @param background The zoomed background image of the panel, shared between panels
+     * @param scene      Where everything in the panel goes
+     * @return The image of the panel
+     */
+    private static BufferedImage drawPanel(BufferedImage background, Scene.Panel scene) {
+        long start = Metrics.start();
+        BufferedImage combined = Compositor.create(scene.getWidth(), scene.getHeight());
+        Metrics.image(combined);
+        Graphics2D ga = (Graphics2D) combined.getGraphics();
+
+        ga.setFont(AssetLoader.getInstance().getFont(FONT));
+
+        if (scene.hasBackground()) {
+            Compositor.draw(background, combined, 0, 0);
+        }
+        for (Scene.Sprite sprite : scene.getSprites()) {
+            Compositor.draw(sprite.getImage(), combined, sprite.getX(), sprite.getY());
+        }
+        for (Scene.Bubble bubble : scene.getBubbles()) {
+            BubbleText.draw(ga, bubble);
+        }
 
         ga.dispose();
+        Metrics.stop(Metrics.Stage.PANEL, start);
         return combined;
+    }
 
+    /**
+     * Create the speech bubbles for a message, wrapped as chosen by the {@link #WRAP_PROPERTY} system property
+     *
+     * @param text      The text of the message
+     * @param monolouge Whether the speech bubble represents a single speech or a small reply in conversation
+     * @param font      The font the speech bubbles will be drawn in
+     * @return A list of speech bubbles generated from the message
+     */
+    private static List<BubbleText> createText(String text, boolean monolouge, Font font) {
+        long start = Metrics.start();
+        List<BubbleText> result;
+        if (WRAP_PIXELS) {
+            result = BubbleText.createText(text, monolouge, font, FRC);
+        } else {
+            result = BubbleText.createText(text, monolouge);
+        }
+        Metrics.stop(Metrics.Stage.BUBBLE, start);
+        return result;
+    }
+
+    /**
+     * Get the rendering context of the images panels are drawn in
+     *
+     * @return The rendering context
+     */
+    private static FontRenderContext createFontRenderContext() {
+        Graphics2D ga = Compositor.create(1, 1).createGraphics();
+        try {
+            return ga.getFontRenderContext();
+        } finally {
+            ga.dispose();
+        }
     }
 
     //todo: fix remaining methods in this class
@@ -217,8 +579,16 @@ public class Conversation {
         return op.filter(in, null);
     }
 
+    /**
+     * Zoom into a background image. The result is always opaque TYPE_INT_RGB to match the comic canvas
+     *
+     * @param level The zoom level
+     * @param back  The background to zoom into
+     * @return A new image of the zoomed background, the same size as the input
+     */
     public static BufferedImage backgroundZoom(int level, BufferedImage back) {
-        BufferedImage resized = new BufferedImage(back.getWidth(), back.getHeight(), back.getType());
+        BufferedImage resized = new BufferedImage(back.getWidth(), back.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Metrics.image(resized);
         Graphics2D g = resized.createGraphics();
 
         double zoom = 1.0f;
@@ -0,0 +1,146 @@
+import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * GlyphAdvances.java
+ * A table of how far each character advances a line of text in a particular font, so that lines can be measured
+ * by adding up numbers rather than laying out the text
+ */
+public class GlyphAdvances {
+
+    /**
+     * Advances that count every character as one, for wrapping by number of characters
+     */
+    public static final GlyphAdvances CHARACTERS = new GlyphAdvances();
+
+    /**
+     * The number of characters, from zero, held in each table
+     */
+    private static final int TABLE_SIZE = 256;
+
+    /**
+     * The tables already computed, one per font and rendering context
+     */
+    private static final Map<Key, GlyphAdvances> tables = new ConcurrentHashMap<>();
+
+    /**
+     * Identifies a font in a particular rendering context
+     */
+    private static class Key {
+        final Font font;
+        final FontRenderContext frc;
+
+        Key(Font font, FontRenderContext frc) {
+            this.font = font;
+            this.frc = frc;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Key key = (Key) o;
+
+            return font.equals(key.font) && frc.equals(key.frc);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * font.hashCode() + frc.hashCode();
+        }
+    }
+
+    /**
+     * The font measured, or null if every character counts as one
+     */
+    private final Font font;
+
+    /**
+     * The rendering context measured in, or null if every character counts as one
+     */
+    private final FontRenderContext frc;
+
+    /**
+     * The advance of each character below {@link #TABLE_SIZE}
+     */
+    private final float[] table = new float[TABLE_SIZE];
+
+    /**
+     * The average advance of the upper case letters
+     */
+    private final float average;
+
+    /**
+     * Creates advances that count every character as one
+     */
+    private GlyphAdvances() {
+        this.font = null;
+        this.frc = null;
+        Arrays.fill(table, 1);
+        this.average = 1;
+    }
+
+    /**
+     * Measures the advance of every character in the table
+     *
+     * @param font The font to measure
+     * @param frc  The rendering context to measure in
+     */
+    private GlyphAdvances(Font font, FontRenderContext frc) {
+        this.font = font;
+        this.frc = frc;
+
+        char[] chars = new char[TABLE_SIZE];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) i;
+        }
+        GlyphVector gv = font.createGlyphVector(frc, chars);
+        for (int i = 0; i < table.length; i++) {
+            table[i] = gv.getGlyphMetrics(i).getAdvance();
+        }
+
+        float sum = 0;
+        for (char c = 'A'; c <= 'Z'; c++) {
+            sum += table[c];
+        }
+        this.average = sum / 26;
+    }
+
+    /**
+     * Get the advances of a font, measuring them only the first time they are requested
+     *
+     * @param font The font to measure
+     * @param frc  The rendering context to measure in
+     * @return The advances of the font
+     */
+    public static GlyphAdvances get(Font font, FontRenderContext frc) {
+        return tables.computeIfAbsent(new Key(font, frc), k -> new GlyphAdvances(k.font, k.frc));
+    }
+
+    /**
+     * Get how far a character advances a line of text
+     *
+     * @param c The character
+     * @return The advance of the character in pixels, or one if counting characters
+     */
+    public float advance(char c) {
+        if (c < TABLE_SIZE) {
+            return table[c];
+        }
+        return font == null ? 1 : (float) font.getStringBounds(String.valueOf(c), frc).getWidth();
+    }
+
+    /**
+     * Get the average advance of the upper case letters, to convert a number of characters into a width
+     *
+     * @return The average advance of 'A' to 'Z' in pixels, or one if counting characters
+     */
+    public float getAverage() {
+        return average;
+    }
+}
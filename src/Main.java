@@ -1,9 +1,14 @@
-import javax.imageio.ImageIO;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Created by adam on 31/03/2016.
@@ -11,23 +16,79 @@ import java.util.List;
 public class Main {
 
     public static void main(String[] args) throws Exception {
-        if(args.length > 0) {
+        if (args.length > 0 && args[0].equals("--serve")) {
+            RenderServer server = new RenderServer(args.length > 1 ? Integer.parseInt(args[1]) : 8080);
+            server.start();
+            System.out.println("Rendering comics at http://localhost:" + server.getAddress().getPort() + "/render");
+        } else if (args.length > 1 && args[0].equals("--batch")) {
+            // a directory or manifest of conversations, each rendered to its own file
+            List<BatchRenderer.Job> jobs;
+            try {
+                jobs = BatchRenderer.createJobs(new File(args[1]), new File(args.length > 2 ? args[2] : "."));
+            } catch (IOException ioe) {
+                System.err.println("Error reading batch: " + ioe.getLocalizedMessage());
+                System.exit(1);
+                return;
+            }
+            int failed = new BatchRenderer(Runtime.getRuntime().availableProcessors()).render(jobs);
+            System.out.println("Rendered " + (jobs.size() - failed) + " of " + jobs.size() + " conversations");
+            // the metrics of every conversation in the batch together
+            writeMetrics();
+            if (failed > 0) {
+                System.exit(1);
+            }
+        } else if(args.length > 0) {
             File f = new File(args[0]);
-            FileReader fr = new FileReader(f);
-            BufferedReader br = new BufferedReader(fr);
 
-            List<String> lines = new ArrayList<String>();
-            while(br.ready()) {
-                lines.add(br.readLine());
-            }
-            Conversation con = new Conversation(lines);
-            Comic c = new Comic(con.toImages(), 4);
-            ImageIO.write(c.toImage(), "PNG", new File("combined.png"));
+            ForkJoinPool pool = ForkJoinPool.commonPool();
+            int window = pool.getParallelism() * 2;
 
+            if (args.length > 1) {
+                // one file per page of the given number of rows
+                try (BufferedReader br = new BufferedReader(new FileReader(f))) {
+                    PagedComicWriter c = new PagedComicWriter("combined-%d.png", 4, Integer.parseInt(args[1]), pool,
+                            pool.getParallelism());
+                    new Conversation().toImages(br, pool, window, c);
+                    c.close();
+                }
+            } else {
+                try (BufferedReader br = new BufferedReader(new FileReader(f));
+                     FileChannel out = FileChannel.open(new File("combined.png").toPath(), StandardOpenOption.CREATE,
+                             StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    if (Boolean.getBoolean(AnimatedWriter.PROPERTY)) {
+                        // one panel per frame
+                        AnimatedWriter c = new AnimatedWriter(out);
+                        new Conversation().toImages(br, pool, window, c);
+                        c.close();
+                    } else {
+                        ComicWriter c = new ComicWriter(out, 4);
+                        new Conversation().toImages(br, pool, window, c);
+                        c.close();
+                    }
+                }
+            }
 
+            writeMetrics();
         }
 
 
     }
 
+    /**
+     * Write the recorded metrics as JSON to the file named by the {@link Metrics#PROPERTY} system property, or print
+     * them for "-", if it is set
+     *
+     * @throws IOException If the metrics can not be written
+     */
+    private static void writeMetrics() throws IOException {
+        String metrics = System.getProperty(Metrics.PROPERTY);
+        if (metrics != null) {
+            if (metrics.equals("-")) {
+                System.out.print(Metrics.toJson());
+            } else {
+                Files.write(Paths.get(metrics), Metrics.toJson().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
 }
@@ -0,0 +1,218 @@
+import java.awt.image.BufferedImage;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics.java
+ * Records how long each stage of rendering takes, how many bytes of images are allocated and how often caches are hit.
+ * Recording is off unless enabled, and then costs a single flag check per call.
+ * Enable it with {@link #setEnabled(boolean)} or by setting the {@link #PROPERTY} system property to a file to write the
+ * metrics to as JSON when Main finishes, or to "-" to print them
+ */
+public class Metrics {
+
+    /**
+     * The system property naming the file to write metrics to, which also enables recording
+     */
+    public static final String PROPERTY = "mschat.metrics";
+
+    /**
+     * A stage of rendering a comic
+     */
+    public enum Stage {
+        PARSE, ASSIGN, SPRITE, BUBBLE, LAYOUT, PANEL, STRIP, ENCODE;
+
+        /**
+         * Durations recorded in each power of two bucket of nanoseconds
+         */
+        final AtomicLongArray histogram = new AtomicLongArray(64);
+        final LongAdder count = new LongAdder();
+        final LongAdder total = new LongAdder();
+        final AtomicLong max = new AtomicLong();
+    }
+
+    /**
+     * A cache whose hits and misses are counted
+     */
+    public enum Cache {
+        SPRITES, LINE_BOUNDS, BUBBLE_CHROME, PANELS;
+
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+    }
+
+    private static volatile boolean enabled = System.getProperty(PROPERTY) != null;
+
+    /**
+     * The number of bytes of images allocated
+     */
+    private static final LongAdder imageBytes = new LongAdder();
+
+    /**
+     * When recording started
+     */
+    private static volatile long started = System.nanoTime();
+
+    private Metrics() {
+    }
+
+    /**
+     * @return Whether metrics are being recorded
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Start or stop recording metrics
+     *
+     * @param enabled Whether to record metrics
+     */
+    public static void setEnabled(boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+    /**
+     * Start timing a stage
+     *
+     * @return The time the stage started, or 0 if metrics are not being recorded
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Finish timing a stage
+     *
+     * @param stage The stage
+     * @param start The time returned by {@link #start()}
+     */
+    public static void stop(Stage stage, long start) {
+        if (!enabled || start == 0) {
+            return;
+        }
+
+        long nanos = Math.max(System.nanoTime() - start, 0);
+        stage.histogram.incrementAndGet(63 - Long.numberOfLeadingZeros(nanos | 1));
+        stage.count.increment();
+        stage.total.add(nanos);
+        stage.max.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Record an image being allocated
+     *
+     * @param img The image allocated
+     */
+    public static void image(BufferedImage img) {
+        if (enabled) {
+            imageBytes.add(AssetCache.sizeOf(img));
+        }
+    }
+
+    /**
+     * Record a cache lookup
+     *
+     * @param cache The cache
+     * @param hit   Whether the lookup found its value
+     */
+    public static void lookup(Cache cache, boolean hit) {
+        if (enabled) {
+            (hit ? cache.hits : cache.misses).increment();
+        }
+    }
+
+    /**
+     * Forget everything recorded so far and start timing again
+     */
+    public static void reset() {
+        for (Stage stage : Stage.values()) {
+            for (int i = 0; i < stage.histogram.length(); i++) {
+                stage.histogram.set(i, 0);
+            }
+            stage.count.reset();
+            stage.total.reset();
+            stage.max.set(0);
+        }
+        for (Cache cache : Cache.values()) {
+            cache.hits.reset();
+            cache.misses.reset();
+        }
+        imageBytes.reset();
+        started = System.nanoTime();
+    }
+
+    /**
+     * Get everything recorded since recording started or was reset
+     *
+     * @return The metrics as a JSON object
+     */
+    public static String toJson() {
+        double seconds = (System.nanoTime() - started) / 1e9;
+        long panels = Stage.PANEL.count.sum();
+
+        StringBuilder sb = new StringBuilder("{\n");
+        sb.append("  \"elapsedSeconds\": ").append(number(seconds)).append(",\n");
+        sb.append("  \"panels\": ").append(panels).append(",\n");
+        sb.append("  \"panelsPerSecond\": ").append(number(seconds > 0 ? panels / seconds : 0)).append(",\n");
+        sb.append("  \"imageBytes\": ").append(imageBytes.sum()).append(",\n");
+
+        sb.append("  \"stages\": {");
+        String separator = "\n";
+        for (Stage stage : Stage.values()) {
+            long count = stage.count.sum();
+            long total = stage.total.sum();
+
+            sb.append(separator).append("    \"").append(name(stage)).append("\": {");
+            sb.append("\"count\": ").append(count);
+            sb.append(", \"totalMillis\": ").append(number(total / 1e6));
+            sb.append(", \"meanMicros\": ").append(number(count > 0 ? total / 1e3 / count : 0));
+            sb.append(", \"maxMicros\": ").append(number(stage.max.get() / 1e3));
+            sb.append(", \"histogramNanos\": {");
+            String bucketSeparator = "";
+            for (int i = 0; i < stage.histogram.length(); i++) {
+                long n = stage.histogram.get(i);
+                if (n > 0) {
+                    // keyed by the exclusive upper bound of the bucket
+                    sb.append(bucketSeparator).append('"').append(Long.toUnsignedString(1L << (i + 1))).append("\": ").append(n);
+                    bucketSeparator = ", ";
+                }
+            }
+            sb.append("}}");
+            separator = ",\n";
+        }
+        sb.append("\n  },\n");
+
+        sb.append("  \"caches\": {\n");
+        for (Cache cache : Cache.values()) {
+            cache(sb, name(cache), cache.hits.sum(), cache.misses.sum());
+            sb.append("},\n");
+        }
+        AssetCache assets = AssetLoader.getInstance().getCache();
+        cache(sb, "assets", assets.getHits(), assets.getMisses());
+        sb.append(", \"evictions\": ").append(assets.getEvictions()).append(", \"bytes\": ").append(assets.getBytes());
+        sb.append("}\n  }\n}\n");
+
+        return sb.toString();
+    }
+
+    private static void cache(StringBuilder sb, String name, long hits, long misses) {
+        sb.append("    \"").append(name).append("\": {\"hits\": ").append(hits).append(", \"misses\": ").append(misses);
+        sb.append(", \"hitRate\": ").append(number(hits + misses > 0 ? (double) hits / (hits + misses) : 0));
+    }
+
+    private static String name(Enum<?> e) {
+        String[] words = e.name().toLowerCase(Locale.ROOT).split("_");
+        StringBuilder sb = new StringBuilder(words[0]);
+        for (int i = 1; i < words.length; i++) {
+            sb.append(java.lang.Character.toUpperCase(words[i].charAt(0))).append(words[i].substring(1));
+        }
+        return sb.toString();
+    }
+
+    private static String number(double d) {
+        return String.format(Locale.ROOT, "%.3f", d);
+    }
+}
@@ -0,0 +1,186 @@
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * PagedComicWriter.java
+ * Writes a comic strip as a series of pages, each a separate PNG with a fixed number of rows.
+ * Each page is encoded on an executor as soon as its panels are ready, so pages are encoded concurrently
+ * while the rest of the conversation is still being rendered
+ */
+public class PagedComicWriter implements Consumer<BufferedImage>, Closeable {
+
+    /**
+     * The file name of each page, formatted with the page number starting from 1. eg: "combined-%d.png"
+     */
+    private final String pattern;
+
+    /**
+     * The maximum number of panels per row
+     */
+    private final int width;
+
+    /**
+     * The number of rows per page
+     */
+    private final int rows;
+
+    /**
+     * The executor to encode the pages on
+     */
+    private final ExecutorService executor;
+
+    /**
+     * The maximum number of pages being encoded at once
+     */
+    private final int window;
+
+    /**
+     * The panels of the current page
+     */
+    private List<BufferedImage> page = new ArrayList<>();
+
+    /**
+     * The pages being encoded, oldest first
+     */
+    private Deque<Future<File>> pending = new ArrayDeque<>();
+
+    /**
+     * The pages written so far
+     */
+    private List<File> written = new ArrayList<>();
+
+    /**
+     * Create a new paged comic writer
+     *
+     * @param pattern  The file name of each page, formatted with the page number starting from 1. eg: "combined-%d.png"
+     * @param width    The maximum number of panels per row
+     * @param rows     The number of rows per page
+     * @param executor The executor to encode the pages on
+     * @param window   The maximum number of pages being encoded at once
+     */
+    public PagedComicWriter(String pattern, int width, int rows, ExecutorService executor, int window) {
+        this.pattern = pattern;
+        this.width = width;
+        this.rows = rows;
+        this.executor = executor;
+        this.window = Math.max(window, 1);
+    }
+
+    /**
+     * Add the next panel to the comic
+     *
+     * @param panel The image of the panel
+     * @throws UncheckedIOException If an earlier page could not be written
+     */
+    @Override
+    public void accept(BufferedImage panel) {
+        page.add(panel);
+        if (page.size() == width * rows) {
+            try {
+                submitPage();
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }
+    }
+
+    /**
+     * Write any remaining panels and wait for all pages to be written
+     *
+     * @throws IOException If a page could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!page.isEmpty()) {
+                submitPage();
+            }
+            while (!pending.isEmpty()) {
+                written.add(await(pending.poll()));
+            }
+        } finally {
+            for (Future<File> f : pending) {
+                f.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Get the pages written so far, in order
+     *
+     * @return The files of the pages that have finished being written
+     */
+    public List<File> getPages() {
+        return written;
+    }
+
+    /**
+     * Start encoding the current page, first waiting for the oldest page if too many are being encoded
+     *
+     * @throws IOException If an earlier page could not be written
+     */
+    private void submitPage() throws IOException {
+        final List<BufferedImage> panels = page;
+        final File f = new File(String.format(pattern, written.size() + pending.size() + 1));
+        page = new ArrayList<>();
+
+        if (pending.size() >= window) {
+            written.add(await(pending.poll()));
+        }
+        pending.add(executor.submit(() -> writePage(panels, f)));
+    }
+
+    /**
+     * Write a single page
+     *
+     * @param panels The panels of the page
+     * @param f      The file to write the page to
+     * @return The file written
+     * @throws IOException If the page can not be written
+     */
+    private File writePage(List<BufferedImage> panels, File f) throws IOException {
+        try (FileChannel out = FileChannel.open(f.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ComicWriter c = new ComicWriter(out, new Comic(panels, width).layout());
+            panels.forEach(c);
+            c.close();
+        }
+        return f;
+    }
+
+    /**
+     * Wait for a page to be written
+     *
+     * @param f The page being written
+     * @return The file written
+     * @throws IOException If the page could not be written
+     */
+    private static File await(Future<File> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing pages");
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Error writing page: " + cause.getLocalizedMessage(), cause);
+        }
+    }
+}
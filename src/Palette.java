@@ -0,0 +1,420 @@
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Palette.java
+ * Up to 256 colours chosen to represent the colours of the assets, for writing comics as 8 bit indexed PNGs.
+ * <p>
+ * The palette is chosen by median cut over a histogram of the background panels are drawn on and the characters,
+ * always including pure black and white so outlines, text and speech bubbles stay exact. When assets are loaded lazily
+ * only the characters already decoded are counted, along with a coarse cube of colours for the rest, so that choosing
+ * a palette does not decode every sprite. Each colour is mapped to its nearest palette entry
+ * through a table indexed by the top 5 bits of each channel, so quantizing a pixel is a single lookup.
+ * Pixels can optionally be dithered with an ordered pattern, which depends only on each pixel's position so that
+ * separate rows of an image can be quantized in parallel
+ */
+public class Palette {
+
+    /**
+     * The maximum number of colours in a palette
+     */
+    public static final int MAX_COLOURS = 256;
+
+    /**
+     * The number of bits of each channel used to index the histogram and lookup table
+     */
+    private static final int BITS = 5;
+
+    /**
+     * The number of entries in the histogram and lookup table
+     */
+    private static final int BINS = 1 << (3 * BITS);
+
+    /**
+     * A 4x4 Bayer matrix, the threshold each pixel is offset by when dithering
+     */
+    private static final int[] BAYER = {
+            0, 8, 2, 10,
+            12, 4, 14, 6,
+            3, 11, 1, 9,
+            15, 7, 13, 5
+    };
+
+    /**
+     * Holds the palette built from the shared assets, built the first time it is used
+     */
+    private static class Holder {
+        private static final Palette assets = fromAssets(AssetLoader.getInstance());
+    }
+
+    /**
+     * The RGB colours of the palette
+     */
+    private final int[] colours;
+
+    /**
+     * The index of the nearest palette entry to each histogram bin
+     */
+    private final byte[] lookup = new byte[BINS];
+
+    /**
+     * Creates a palette and the table mapping colours onto it
+     *
+     * @param colours The RGB colours of the palette, at most {@link #MAX_COLOURS}
+     */
+    public Palette(int[] colours) {
+        if (colours.length == 0 || colours.length > MAX_COLOURS) {
+            throw new IllegalArgumentException("A palette must have 1 to " + MAX_COLOURS + " colours");
+        }
+        this.colours = colours.clone();
+
+        for (int bin = 0; bin < BINS; bin++) {
+            int rgb = binColour(bin);
+            int best = 0;
+            int bestDistance = Integer.MAX_VALUE;
+            for (int i = 0; i < colours.length; i++) {
+                int d = distance(rgb, colours[i]);
+                if (d < bestDistance) {
+                    bestDistance = d;
+                    best = i;
+                }
+            }
+            lookup[bin] = (byte) best;
+        }
+
+        // colours in the palette map to themselves, the earliest winning if several share a bin
+        for (int i = colours.length - 1; i >= 0; i--) {
+            lookup[bin(colours[i])] = (byte) i;
+        }
+    }
+
+    /**
+     * Get the palette built from the colours of the shared assets
+     *
+     * @return The palette
+     */
+    public static Palette getDefault() {
+        return Holder.assets;
+    }
+
+    /**
+     * Build a palette from the colours of the background and characters, as they are drawn in panels.
+     * When the loader is lazy only the characters that have already been decoded are counted, and the rest are
+     * represented by every combination of no, half and full red, green and blue, which costs some accuracy on their
+     * colours
+     *
+     * @param ldr The assets to take the colours from
+     * @return The palette
+     */
+    public static Palette fromAssets(AssetLoader ldr) {
+        Histogram h = new Histogram();
+        BufferedImage background = ldr.getBackground(Conversation.BACKGROUND, 1);
+        if (background != null) {
+            h.add(background);
+        }
+        boolean lazy = ldr.isLazy();
+        for (String name : ldr.getCharacterNames()) {
+            Character c = lazy ? ldr.getDecodedCharacter(name) : ldr.getCharacter(name);
+            if (c != null) {
+                for (BufferedImage img : c.getImages().values()) {
+                    h.add(img);
+                }
+            }
+        }
+        int[] reserved = lazy ? cube(0x000000, 0xFFFFFF) : new int[]{0x000000, 0xFFFFFF};
+        return h.toPalette(MAX_COLOURS, reserved);
+    }
+
+    /**
+     * Get the colours with each channel at none, half or full intensity
+     *
+     * @param first The colours to put first, which are not repeated
+     * @return The colours
+     */
+    private static int[] cube(int... first) {
+        List<Integer> result = new ArrayList<>();
+        for (int c : first) {
+            result.add(c);
+        }
+        int[] levels = {0x00, 0x80, 0xFF};
+        for (int r : levels) {
+            for (int g : levels) {
+                for (int b : levels) {
+                    int rgb = (r << 16) | (g << 8) | b;
+                    if (!result.contains(rgb)) {
+                        result.add(rgb);
+                    }
+                }
+            }
+        }
+        return result.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Get the number of colours in the palette
+     *
+     * @return The number of colours
+     */
+    public int size() {
+        return colours.length;
+    }
+
+    /**
+     * Get the palette as the contents of a PNG PLTE chunk
+     *
+     * @return The red, green and blue bytes of each colour in turn
+     */
+    public byte[] toBytes() {
+        byte[] result = new byte[colours.length * 3];
+        for (int i = 0, j = 0; i < colours.length; i++) {
+            result[j++] = (byte) (colours[i] >> 16);
+            result[j++] = (byte) (colours[i] >> 8);
+            result[j++] = (byte) colours[i];
+        }
+        return result;
+    }
+
+    /**
+     * Map a row of pixels onto the palette
+     *
+     * @param src    The RGB pixels
+     * @param srcOff The offset of the row in src
+     * @param dst    Receives the index of each pixel's palette entry
+     * @param dstOff The offset to write the indexes at
+     * @param width  The number of pixels in the row
+     * @param y      The Y position of the row in the image, which chooses the dither pattern
+     * @param dither Whether to dither the pixels
+     */
+    public void quantize(int[] src, int srcOff, byte[] dst, int dstOff, int width, int y, boolean dither) {
+        if (!dither) {
+            for (int x = 0; x < width; x++) {
+                dst[dstOff + x] = lookup[bin(src[srcOff + x])];
+            }
+            return;
+        }
+
+        int row = (y & 3) * 4;
+        for (int x = 0; x < width; x++) {
+            int p = src[srcOff + x];
+            // spread the offsets over the width of one histogram bin, centred on the pixel
+            int offset = (BAYER[row + (x & 3)] * 2 - 15) * (1 << (8 - BITS)) / 16;
+            int r = clamp(((p >> 16) & 0xFF) + offset);
+            int g = clamp(((p >> 8) & 0xFF) + offset);
+            int b = clamp((p & 0xFF) + offset);
+            dst[dstOff + x] = lookup[bin((r << 16) | (g << 8) | b)];
+        }
+    }
+
+    private static int clamp(int c) {
+        return c < 0 ? 0 : Math.min(c, 255);
+    }
+
+    /**
+     * Get the histogram bin of a colour
+     */
+    private static int bin(int rgb) {
+        int shift = 8 - BITS;
+        return ((rgb >> (16 + shift)) & 0x1F) << (2 * BITS) | ((rgb >> (8 + shift)) & 0x1F) << BITS
+                | ((rgb >> shift) & 0x1F);
+    }
+
+    /**
+     * Get the colour at the centre of a histogram bin
+     */
+    private static int binColour(int bin) {
+        int shift = 8 - BITS;
+        int half = 1 << (shift - 1);
+        int r = ((bin >> (2 * BITS)) & 0x1F) << shift | half;
+        int g = ((bin >> BITS) & 0x1F) << shift | half;
+        int b = (bin & 0x1F) << shift | half;
+        return (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * Get the squared distance between two colours, weighting green the most and blue the least as the eye does
+     */
+    private static int distance(int a, int b) {
+        int dr = ((a >> 16) & 0xFF) - ((b >> 16) & 0xFF);
+        int dg = ((a >> 8) & 0xFF) - ((b >> 8) & 0xFF);
+        int db = (a & 0xFF) - (b & 0xFF);
+        return 3 * dr * dr + 4 * dg * dg + 2 * db * db;
+    }
+
+    /**
+     * Counts the colours of images and chooses a palette for them by median cut
+     */
+    static class Histogram {
+        final long[] counts = new long[BINS];
+        final long[] reds = new long[BINS];
+        final long[] greens = new long[BINS];
+        final long[] blues = new long[BINS];
+
+        /**
+         * Count the mostly opaque pixels of an image
+         *
+         * @param img The image, or null to count nothing
+         */
+        void add(BufferedImage img) {
+            if (img == null) {
+                return;
+            }
+
+            int[] row = new int[img.getWidth()];
+            for (int y = 0; y < img.getHeight(); y++) {
+                img.getRGB(0, y, row.length, 1, row, 0, row.length);
+                for (int p : row) {
+                    if ((p >>> 24) >= 0x80) {
+                        int bin = bin(p);
+                        counts[bin]++;
+                        reds[bin] += (p >> 16) & 0xFF;
+                        greens[bin] += (p >> 8) & 0xFF;
+                        blues[bin] += p & 0xFF;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Choose a palette by repeatedly splitting the box of colours with the most pixels at its median
+         *
+         * @param size  The number of colours in the palette
+         * @param fixed Colours always included in the palette
+         * @return The palette
+         */
+        Palette toPalette(int size, int... fixed) {
+            List<Box> boxes = new ArrayList<>();
+            Box all = new Box(0, 31, 0, 31, 0, 31);
+            if (all.count > 0) {
+                boxes.add(all);
+            }
+
+            while (boxes.size() + fixed.length < size) {
+                Box largest = null;
+                for (Box box : boxes) {
+                    if (box.canSplit() && (largest == null || box.count > largest.count)) {
+                        largest = box;
+                    }
+                }
+                if (largest == null) {
+                    break;
+                }
+                boxes.remove(largest);
+                boxes.addAll(largest.split());
+            }
+
+            int[] colours = new int[fixed.length + boxes.size()];
+            System.arraycopy(fixed, 0, colours, 0, fixed.length);
+            for (int i = 0; i < boxes.size(); i++) {
+                colours[fixed.length + i] = boxes.get(i).mean();
+            }
+            return new Palette(colours);
+        }
+
+        /**
+         * A box of histogram bins, bounded inclusively in each channel
+         */
+        private class Box {
+            final int[] min;
+            final int[] max;
+            long count;
+
+            Box(int r0, int r1, int g0, int g1, int b0, int b1) {
+                this.min = new int[]{r0, g0, b0};
+                this.max = new int[]{r1, g1, b1};
+                shrink();
+            }
+
+            /**
+             * Shrink the box to the bins that hold pixels, and count them
+             */
+            private void shrink() {
+                int[] lo = {31, 31, 31};
+                int[] hi = {0, 0, 0};
+                count = 0;
+                for (int r = min[0]; r <= max[0]; r++) {
+                    for (int g = min[1]; g <= max[1]; g++) {
+                        for (int b = min[2]; b <= max[2]; b++) {
+                            long n = counts[(r << (2 * BITS)) | (g << BITS) | b];
+                            if (n > 0) {
+                                count += n;
+                                lo[0] = Math.min(lo[0], r);
+                                hi[0] = Math.max(hi[0], r);
+                                lo[1] = Math.min(lo[1], g);
+                                hi[1] = Math.max(hi[1], g);
+                                lo[2] = Math.min(lo[2], b);
+                                hi[2] = Math.max(hi[2], b);
+                            }
+                        }
+                    }
+                }
+                if (count > 0) {
+                    System.arraycopy(lo, 0, min, 0, 3);
+                    System.arraycopy(hi, 0, max, 0, 3);
+                }
+            }
+
+            boolean canSplit() {
+                return max[0] > min[0] || max[1] > min[1] || max[2] > min[2];
+            }
+
+            /**
+             * Split the box in two along its longest channel, at the median pixel
+             */
+            List<Box> split() {
+                int axis = 0;
+                for (int i = 1; i < 3; i++) {
+                    if (max[i] - min[i] > max[axis] - min[axis]) {
+                        axis = i;
+                    }
+                }
+
+                long[] slices = new long[32];
+                for (int r = min[0]; r <= max[0]; r++) {
+                    for (int g = min[1]; g <= max[1]; g++) {
+                        for (int b = min[2]; b <= max[2]; b++) {
+                            int[] c = {r, g, b};
+                            slices[c[axis]] += counts[(r << (2 * BITS)) | (g << BITS) | b];
+                        }
+                    }
+                }
+
+                // the last slice of the lower box, leaving at least one slice for the upper box
+                int cut = min[axis];
+                long sum = slices[cut];
+                while (cut < max[axis] - 1 && sum < count / 2) {
+                    sum += slices[++cut];
+                }
+
+                int[] lowMax = max.clone();
+                lowMax[axis] = cut;
+                int[] highMin = min.clone();
+                highMin[axis] = cut + 1;
+
+                List<Box> result = new ArrayList<>(2);
+                result.add(new Box(min[0], lowMax[0], min[1], lowMax[1], min[2], lowMax[2]));
+                result.add(new Box(highMin[0], max[0], highMin[1], max[1], highMin[2], max[2]));
+                result.removeIf(box -> box.count == 0);
+                return result;
+            }
+
+            /**
+             * Get the mean colour of the pixels in the box
+             */
+            int mean() {
+                long r = 0, g = 0, b = 0;
+                for (int i = min[0]; i <= max[0]; i++) {
+                    for (int j = min[1]; j <= max[1]; j++) {
+                        for (int k = min[2]; k <= max[2]; k++) {
+                            int bin = (i << (2 * BITS)) | (j << BITS) | k;
+                            r += reds[bin];
+                            g += greens[bin];
+                            b += blues[bin];
+                        }
+                    }
+                }
+                return (int) (r / count) << 16 | (int) (g / count) << 8 | (int) (b / count);
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * PanelCache.java
+ * A cache of rendered panels keyed by a hash of everything drawn in them, so that re-rendering a conversation that has
+ * only grown reuses its unchanged panels. Panels are held in memory up to a number of bytes and, if a directory is
+ * given, also kept on disk as PNGs named by their hash so they survive between runs.
+ * Cached panels are shared, so they must not be drawn into
+ */
+public class PanelCache {
+
+    /**
+     * The system property used to set the directory panels are kept in on disk, which also enables the cache
+     */
+    public static final String PROPERTY = "mschat.panelcache";
+
+    /**
+     * The system property used to set the number of bytes of panels kept in memory
+     */
+    public static final String BYTES_PROPERTY = "mschat.panelcache.bytes";
+
+    /**
+     * Included in every key, so that changing the code that draws panels can invalidate the panels already cached.
+     * Changes to the assets themselves are covered by the asset stamps in each key, see {@link AssetLoader#getStamp}
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The panels kept in memory
+     */
+    private final AssetCache memory;
+
+    /**
+     * The directory panels are kept in on disk, or null if they are only kept in memory
+     */
+    private final File dir;
+
+    /**
+     * Creates a new panel cache
+     *
+     * @param budget The number of bytes of panels to keep in memory
+     * @param dir    The directory to keep panels in on disk, created if it does not exist, or null to only keep them in memory
+     */
+    public PanelCache(long budget, File dir) {
+        this.memory = new AssetCache(budget);
+        this.dir = dir;
+    }
+
+    /**
+     * Create the panel cache configured by the {@link #PROPERTY} and {@link #BYTES_PROPERTY} system properties
+     *
+     * @return The panel cache, or null if none is configured
+     */
+    public static PanelCache fromProperties() {
+        String dir = System.getProperty(PROPERTY);
+        if (dir == null) {
+            return null;
+        }
+
+        long budget = Runtime.getRuntime().maxMemory() / 8;
+        String bytes = System.getProperty(BYTES_PROPERTY);
+        if (bytes != null) {
+            try {
+                budget = Long.parseLong(bytes);
+            } catch (NumberFormatException nfe) {
+                System.err.println("Invalid panel cache size: " + bytes);
+            }
+        }
+        return new PanelCache(budget, dir.isEmpty() ? null : new File(dir));
+    }
+
+    /**
+     * Hash everything drawn in a panel into a key
+     *
+     * @param parts The inputs of the panel, each converted to a string
+     * @return The hex encoded SHA-256 hash of the inputs
+     */
+    public static String key(Object... parts) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(Integer.toString(VERSION).getBytes(StandardCharsets.UTF_8));
+            for (Object part : parts) {
+                // prefix each part with its length so that no two different lists of parts hash the same bytes
+                byte[] bytes = String.valueOf(part).getBytes(StandardCharsets.UTF_8);
+                md.update((byte) (bytes.length >>> 24));
+                md.update((byte) (bytes.length >>> 16));
+                md.update((byte) (bytes.length >>> 8));
+                md.update((byte) bytes.length);
+                md.update(bytes);
+            }
+
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        }
+    }
+
+    /**
+     * Get a panel from memory, or else from disk
+     *
+     * @param key The key of the panel, see {@link #key(Object...)}
+     * @return The panel, or null if it has not been cached
+     */
+    public BufferedImage get(String key) {
+        BufferedImage result = (BufferedImage) memory.get(key);
+        if (result != null || dir == null) {
+            return result;
+        }
+
+        File f = new File(dir, key + ".png");
+        if (!f.isFile()) {
+            return null;
+        }
+        try {
+            result = Compositor.toCanonical(ImageIO.read(f));
+        } catch (IOException ioe) {
+            System.err.println("Error reading panel cache: " + ioe.getLocalizedMessage());
+            return null;
+        }
+
+        if (result != null) {
+            memory.put(key, result, AssetCache.sizeOf(result));
+        }
+        return result;
+    }
+
+    /**
+     * Add a panel to memory and to disk, replacing any existing panel on disk atomically
+     *
+     * @param key   The key of the panel, see {@link #key(Object...)}
+     * @param panel The panel
+     */
+    public void put(String key, BufferedImage panel) {
+        memory.put(key, panel, AssetCache.sizeOf(panel));
+        if (dir == null) {
+            return;
+        }
+
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Can not create directory: " + dir.getPath());
+            }
+
+            // PNGs are not premultiplied
+            BufferedImage straight = new BufferedImage(panel.getWidth(), panel.getHeight(), BufferedImage.TYPE_INT_ARGB);
+            int[] data = ((DataBufferInt) straight.getRaster().getDataBuffer()).getData();
+            panel.getRGB(0, 0, panel.getWidth(), panel.getHeight(), data, 0, panel.getWidth());
+
+            File temp = File.createTempFile(key, ".tmp", dir);
+            try {
+                ImageIO.write(straight, "png", temp);
+                Files.move(temp.toPath(), new File(dir, key + ".png").toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp.toPath());
+            }
+        } catch (IOException ioe) {
+            System.err.println("Error writing panel cache: " + ioe.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Get the panels kept in memory, which records how often panels were found there
+     *
+     * @return The memory tier of the cache
+     */
+    public AssetCache getMemory() {
+        return memory;
+    }
+}
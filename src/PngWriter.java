@@ -0,0 +1,703 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * PngWriter.java
+ * Encodes an RGB or palette indexed PNG a few rows at a time, so the whole image never has to be held in memory.
+ * <p>
+ * Rows are gathered into blocks of a few hundred kilobytes, and each block is converted to bytes, mapping each pixel
+ * onto the palette if there is one, then filtered and deflated independently on
+ * an executor, ending with a sync flush so the compressed blocks can simply be written one after another into a single
+ * zlib stream. Their checksums are combined as they are written, in order, so encoding scales with the number of cores
+ * while only a bounded number of blocks are held at once.
+ * <p>
+ * If the height of the image is not known up front, the output must be seekable; the height is written into the
+ * header when the writer is closed
+ */
+public class PngWriter implements Closeable {
+
+    /**
+     * The system property used to set the compression level, from 0 (none) to 9 (smallest)
+     */
+    public static final String LEVEL_PROPERTY = "mschat.png.level";
+
+    /**
+     * The system property used to choose the filter applied to each row, see {@link Filter}
+     */
+    public static final String FILTER_PROPERTY = "mschat.png.filter";
+
+    /**
+     * The system property used to write 8 bit indexed PNGs using the palette of the assets, see {@link Palette}
+     */
+    public static final String INDEXED_PROPERTY = "mschat.png.indexed";
+
+    /**
+     * The system property used to dither indexed PNGs
+     */
+    public static final String DITHER_PROPERTY = "mschat.png.dither";
+
+    /**
+     * How each row is filtered before it is compressed
+     */
+    public enum Filter {
+        NONE, SUB, UP, AVERAGE, PAETH,
+        /**
+         * Choose the filter with the smallest sum of absolute differences for each row
+         */
+        ADAPTIVE
+    }
+
+    /**
+     * The bytes every PNG file starts with
+     */
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    /**
+     * The position of the height in the file, after the signature, the IHDR chunk length and type, and the width
+     */
+    private static final int HEIGHT_OFFSET = 8 + 4 + 4 + 4;
+
+    /**
+     * The maximum number of bytes of compressed data in each IDAT chunk
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * The approximate number of bytes of unfiltered pixels in each block compressed at once
+     */
+    private static final int BLOCK_SIZE = 512 * 1024;
+
+    /**
+     * An empty final deflate block, which ends the compressed blocks
+     */
+    private static final byte[] FINAL_BLOCK = {0x03, 0x00};
+
+    /**
+     * The channel being written
+     */
+    private final WritableByteChannel out;
+
+    /**
+     * The position in the channel the PNG starts at, if it is seekable
+     */
+    private final long start;
+
+    /**
+     * The width of the image in pixels
+     */
+    private final int width;
+
+    /**
+     * The height of the image in pixels, or -1 if it is written when closed
+     */
+    private final int expectedHeight;
+
+    private final int level;
+    private final Filter filter;
+
+    /**
+     * The palette pixels are mapped onto, or null to write RGB
+     */
+    private final Palette palette;
+
+    private final boolean dither;
+
+    /**
+     * The bytes per pixel
+     */
+    private final int bpp;
+
+    /**
+     * The executor blocks are compressed on
+     */
+    private final ExecutorService executor;
+
+    /**
+     * The maximum number of blocks being compressed or waiting to be written
+     */
+    private final int window;
+
+    /**
+     * The number of rows in each block
+     */
+    private final int blockRows;
+
+    /**
+     * The pixels of the current block, preceded by the last row of the previous block
+     */
+    private int[] block;
+
+    /**
+     * The number of rows in the current block
+     */
+    private int rows;
+
+    /**
+     * The blocks being compressed, oldest first
+     */
+    private final Deque<Future<Compressed>> pending = new ArrayDeque<>();
+
+    /**
+     * The checksum of all filtered data written so far
+     */
+    private long adler = 1;
+
+    /**
+     * The number of rows written so far
+     */
+    private int height;
+
+    /**
+     * Starts writing a new PNG whose height is written when closed, compressed as set by the system properties
+     *
+     * @param out   The file to write to from its current position, opened for reading and writing
+     * @param width The width of the image in pixels
+     * @throws IOException If the header can not be written
+     */
+    public PngWriter(FileChannel out, int width) throws IOException {
+        this(out, width, -1);
+    }
+
+    /**
+     * Starts writing a new PNG, compressed as set by the system properties
+     *
+     * @param out    The channel to write to. It must be a {@link SeekableByteChannel} opened for reading and writing
+     *               if the height is not known
+     * @param width  The width of the image in pixels
+     * @param height The height of the image in pixels, or -1 to write the height when closed
+     * @throws IOException If the header can not be written
+     */
+    public PngWriter(WritableByteChannel out, int width, int height) throws IOException {
+        this(out, width, height, getLevel(), getFilter(),
+                Boolean.getBoolean(INDEXED_PROPERTY) ? Palette.getDefault() : null, Boolean.getBoolean(DITHER_PROPERTY),
+                ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Starts writing a new PNG
+     *
+     * @param out      The channel to write to. It must be a {@link SeekableByteChannel} opened for reading and writing
+     *                 if the height is not known
+     * @param width    The width of the image in pixels
+     * @param height   The height of the image in pixels, or -1 to write the height when closed
+     * @param level    The compression level, from 0 to 9
+     * @param filter   The filter applied to each row
+     * @param palette  The palette to map pixels onto, or null to write RGB
+     * @param dither   Whether to dither pixels mapped onto the palette
+     * @param executor The executor to compress blocks on
+     * @throws IOException If the header can not be written
+     */
+    public PngWriter(WritableByteChannel out, int width, int height, int level, Filter filter, Palette palette,
+                     boolean dither, ExecutorService executor) throws IOException {
+        if (height < 0 && !(out instanceof SeekableByteChannel)) {
+            throw new IllegalArgumentException("The height must be known to write to a channel that can not seek");
+        }
+
+        this.out = out;
+        this.start = out instanceof SeekableByteChannel ? ((SeekableByteChannel) out).position() : 0;
+        this.width = width;
+        this.expectedHeight = height;
+        this.level = level;
+        this.filter = filter;
+        this.palette = palette;
+        this.dither = dither;
+        this.bpp = palette == null ? 3 : 1;
+        this.executor = executor;
+        this.window = executor instanceof ForkJoinPool ? ((ForkJoinPool) executor).getParallelism() * 2
+                : Runtime.getRuntime().availableProcessors() * 2;
+        this.blockRows = Math.max(1, BLOCK_SIZE / (width * bpp));
+        this.block = new int[(1 + blockRows) * width];
+
+        write(ByteBuffer.wrap(SIGNATURE));
+
+        ByteBuffer ihdr = ByteBuffer.allocate(13);
+        ihdr.putInt(width);
+        ihdr.putInt(Math.max(height, 0)); // written when closed if unknown
+        ihdr.put((byte) 8); // bit depth
+        ihdr.put((byte) (palette == null ? 2 : 3)); // colour type: RGB or indexed
+        ihdr.put((byte) 0); // compression method
+        ihdr.put((byte) 0); // filter method
+        ihdr.put((byte) 0); // interlace method
+        writeChunk("IHDR", ihdr.array(), 0, 13);
+
+        if (palette != null) {
+            byte[] plte = palette.toBytes();
+            writeChunk("PLTE", plte, 0, plte.length);
+        }
+
+        writeChunk("IDAT", zlibHeader(level), 0, 2);
+    }
+
+    /**
+     * Read the compression level from the {@link #LEVEL_PROPERTY} system property
+     *
+     * @return The compression level, the default of 6 if none or an invalid level is set
+     */
+    static int getLevel() {
+        String level = System.getProperty(LEVEL_PROPERTY);
+        if (level != null) {
+            try {
+                int result = Integer.parseInt(level);
+                if (result >= 0 && result <= 9) {
+                    return result;
+                }
+            } catch (NumberFormatException ignored) {
+            }
+            System.err.println("Invalid compression level: " + level);
+        }
+        return 6;
+    }
+
+    /**
+     * Read the filter from the {@link #FILTER_PROPERTY} system property
+     *
+     * @return The filter, {@link Filter#NONE} if none or an unknown filter is set
+     */
+    static Filter getFilter() {
+        String filter = System.getProperty(FILTER_PROPERTY, Filter.NONE.name());
+        try {
+            return Filter.valueOf(filter.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException iae) {
+            System.err.println("Unknown filter: " + filter);
+            return Filter.NONE;
+        }
+    }
+
+    /**
+     * Append every row of an image to the PNG
+     *
+     * @param rows An image the same width as the PNG
+     * @throws IOException If the rows can not be written
+     */
+    public void write(BufferedImage rows) throws IOException {
+        if (rows.getWidth() != width) {
+            throw new IllegalArgumentException("Expected width " + width + " but was " + rows.getWidth());
+        }
+
+        long began = Metrics.start();
+        for (int y = 0; y < rows.getHeight(); y++) {
+            rows.getRGB(0, y, width, 1, block, (1 + this.rows) * width, width);
+            height++;
+
+            if (++this.rows == blockRows) {
+                submitBlock();
+            }
+        }
+        Metrics.stop(Metrics.Stage.ENCODE, began);
+    }
+
+    /**
+     * Get the width of the image
+     *
+     * @return The width of the image in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Get the number of rows written so far
+     *
+     * @return The height of the image written so far
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Finish the PNG, writing its height into the header if it was not known. The channel itself is not closed
+     *
+     * @throws IOException If the PNG can not be finished, or fewer or more rows were written than expected
+     */
+    @Override
+    public void close() throws IOException {
+        long began = Metrics.start();
+        if (rows > 0) {
+            submitBlock();
+        }
+        while (!pending.isEmpty()) {
+            writeBlock(pending.poll());
+        }
+        if (expectedHeight >= 0 && height != expectedHeight) {
+            throw new IOException("Expected " + expectedHeight + " rows but " + height + " were written");
+        }
+
+        ByteBuffer end = ByteBuffer.allocate(FINAL_BLOCK.length + 4);
+        end.put(FINAL_BLOCK).putInt((int) adler);
+        writeChunk("IDAT", end.array(), 0, end.capacity());
+        writeChunk("IEND", new byte[0], 0, 0);
+        Metrics.stop(Metrics.Stage.ENCODE, began);
+
+        if (expectedHeight < 0) {
+            writeHeight((SeekableByteChannel) out);
+        }
+    }
+
+    /**
+     * Write the height into the header, and the header's checksum which covers it
+     *
+     * @param channel The channel being written
+     * @throws IOException If the header can not be rewritten
+     */
+    private void writeHeight(SeekableByteChannel channel) throws IOException {
+        long end = channel.position();
+
+        channel.position(start + HEIGHT_OFFSET);
+        write(ByteBuffer.allocate(4).putInt(0, height));
+
+        ByteBuffer ihdr = ByteBuffer.allocate(4 + 13);
+        channel.position(start + HEIGHT_OFFSET - 8);
+        while (ihdr.hasRemaining() && channel.read(ihdr) >= 0) {
+            // keep reading until the whole header is read
+        }
+        CRC32 crc = new CRC32();
+        crc.update(ihdr.array());
+        write(ByteBuffer.allocate(4).putInt(0, (int) crc.getValue()));
+
+        channel.position(end);
+    }
+
+    /**
+     * Start compressing the current block, first writing the oldest block if too many are being compressed
+     *
+     * @throws IOException If an earlier block can not be written
+     */
+    private void submitBlock() throws IOException {
+        final int[] data = block;
+        final int n = rows;
+        final int firstY = height - n;
+
+        // the next block starts with the last row of this one, which its first row is filtered against
+        block = new int[data.length];
+        System.arraycopy(data, n * width, block, 0, width);
+        rows = 0;
+
+        if (pending.size() >= window) {
+            writeBlock(pending.poll());
+        }
+        pending.add(executor.submit(() -> compress(data, n, firstY)));
+    }
+
+    /**
+     * Wait for a block to be compressed and write it
+     *
+     * @param f The block being compressed
+     * @throws IOException If the block can not be compressed or written
+     */
+    private void writeBlock(Future<Compressed> f) throws IOException {
+        Compressed c;
+        try {
+            c = f.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing PNG");
+        } catch (ExecutionException ee) {
+            throw new IOException("Error compressing PNG: " + ee.getCause().getLocalizedMessage(), ee.getCause());
+        }
+
+        adler = combineAdler(adler, c.adler, c.length);
+        for (int off = 0; off < c.size; off += CHUNK_SIZE) {
+            writeChunk("IDAT", c.data, off, Math.min(CHUNK_SIZE, c.size - off));
+        }
+    }
+
+    /**
+     * A block of filtered rows compressed into raw deflate data ending on a byte boundary
+     */
+    private static class Compressed {
+        byte[] data;
+        int size;
+
+        /**
+         * The checksum of the filtered rows
+         */
+        long adler;
+
+        /**
+         * The number of bytes of filtered rows
+         */
+        long length;
+    }
+
+    /**
+     * Convert, filter and compress a block of rows
+     *
+     * @param pixels The pixels of the rows, preceded by the row before them
+     * @param n      The number of rows
+     * @param firstY The Y position of the first row in the image
+     * @return The compressed block
+     */
+    private Compressed compress(int[] pixels, int n, int firstY) {
+        int rowBytes = width * bpp;
+
+        // the row before the first row of the image is treated as zero by the filters
+        byte[] data = new byte[(1 + n) * rowBytes];
+        for (int y = firstY == 0 ? 1 : 0; y <= n; y++) {
+            toBytes(pixels, y * width, data, y * rowBytes, firstY + y - 1);
+        }
+
+        byte[] filtered = filterRows(filter, data, n, rowBytes, bpp);
+
+        Compressed result = new Compressed();
+        Adler32 checksum = new Adler32();
+        checksum.update(filtered);
+        result.adler = checksum.getValue();
+        result.length = filtered.length;
+
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (filter != Filter.NONE) {
+                deflater.setStrategy(Deflater.FILTERED);
+            }
+            deflater.setInput(filtered);
+
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(filtered.length / 4);
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int len;
+            do {
+                // the first call after changing the strategy may return before consuming any input
+                len = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                compressed.write(buffer, 0, len);
+            } while (len == buffer.length || !deflater.needsInput());
+
+            result.data = compressed.toByteArray();
+            result.size = result.data.length;
+        } finally {
+            deflater.end();
+        }
+        return result;
+    }
+
+    /**
+     * Filter rows, prefixing each with its filter type
+     *
+     * @param filter   The filter to apply
+     * @param data     The unfiltered rows, preceded by the row before them
+     * @param n        The number of rows
+     * @param rowBytes The number of bytes in each row
+     * @param bpp      The number of bytes per pixel
+     * @return The filtered rows
+     */
+    static byte[] filterRows(Filter filter, byte[] data, int n, int rowBytes, int bpp) {
+        byte[] filtered = new byte[n * (1 + rowBytes)];
+        byte[] candidate = filter == Filter.ADAPTIVE ? new byte[rowBytes] : null;
+
+        for (int y = 0; y < n; y++) {
+            int prev = y * rowBytes;
+            int cur = prev + rowBytes;
+            int dst = y * (1 + rowBytes);
+
+            Filter f = filter;
+            if (f == Filter.ADAPTIVE) {
+                long best = Long.MAX_VALUE;
+                for (Filter option : Filter.values()) {
+                    if (option == Filter.ADAPTIVE) {
+                        continue;
+                    }
+                    long cost = filterRow(option, data, cur, prev, candidate, 0, rowBytes, bpp);
+                    if (cost < best) {
+                        best = cost;
+                        f = option;
+                    }
+                }
+            }
+
+            filtered[dst] = (byte) f.ordinal(); // filter types are numbered as the enum
+            filterRow(f, data, cur, prev, filtered, dst + 1, rowBytes, bpp);
+        }
+        return filtered;
+    }
+
+    /**
+     * Convert a row of pixels to the bytes stored in the PNG
+     *
+     * @param pixels The pixels
+     * @param src    The offset of the row in pixels
+     * @param dst    Receives the RGB bytes or palette indexes of the row
+     * @param off    The offset to write the row at
+     * @param y      The Y position of the row in the image
+     */
+    private void toBytes(int[] pixels, int src, byte[] dst, int off, int y) {
+        if (palette != null) {
+            palette.quantize(pixels, src, dst, off, width, y, dither);
+            return;
+        }
+
+        for (int x = 0; x < width; x++) {
+            int p = pixels[src + x];
+            dst[off++] = (byte) (p >> 16);
+            dst[off++] = (byte) (p >> 8);
+            dst[off++] = (byte) p;
+        }
+    }
+
+    /**
+     * Filter a single row
+     *
+     * @param f      The filter to apply, not {@link Filter#ADAPTIVE}
+     * @param data   The unfiltered rows
+     * @param cur    The offset of the row in data
+     * @param prev   The offset of the row before it in data
+     * @param dst    Receives the filtered row
+     * @param off    The offset to write the filtered row at
+     * @param length The number of bytes in the row
+     * @param bpp    The number of bytes per pixel
+     * @return The sum of the absolute values of the filtered bytes, treated as signed, to compare filters by
+     */
+    private static long filterRow(Filter f, byte[] data, int cur, int prev, byte[] dst, int off, int length, int bpp) {
+        long cost = 0;
+        for (int i = 0; i < length; i++) {
+            int x = data[cur + i] & 0xFF;
+            int a = i >= bpp ? data[cur + i - bpp] & 0xFF : 0;
+            int b = data[prev + i] & 0xFF;
+            int c = i >= bpp ? data[prev + i - bpp] & 0xFF : 0;
+
+            int predicted;
+            switch (f) {
+                case SUB:
+                    predicted = a;
+                    break;
+                case UP:
+                    predicted = b;
+                    break;
+                case AVERAGE:
+                    predicted = (a + b) >>> 1;
+                    break;
+                case PAETH:
+                    predicted = paeth(a, b, c);
+                    break;
+                default:
+                    predicted = 0;
+                    break;
+            }
+
+            byte v = (byte) (x - predicted);
+            dst[off + i] = v;
+            cost += Math.abs(v);
+        }
+        return cost;
+    }
+
+    /**
+     * Predict a byte from its neighbours to the left, above and above left, as the PNG Paeth filter does
+     */
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    /**
+     * Get the two byte zlib header for a compression level
+     *
+     * @param level The compression level
+     * @return The header bytes
+     */
+    private static byte[] zlibHeader(int level) {
+        int cmf = 0x78; // deflate with a 32K window
+        int flevel = level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3;
+        int flg = flevel << 6;
+        flg += 31 - (cmf * 256 + flg) % 31;
+        return new byte[]{(byte) cmf, (byte) flg};
+    }
+
+    /**
+     * Combine the checksums of two consecutive runs of data into the checksum of both, as zlib's adler32_combine does
+     *
+     * @param adler1 The checksum of the first run
+     * @param adler2 The checksum of the second run
+     * @param len2   The length of the second run
+     * @return The checksum of the first run followed by the second
+     */
+    private static long combineAdler(long adler1, long adler2, long len2) {
+        final long base = 65521;
+        long rem = len2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF) + base - rem;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= (base << 1)) sum2 -= (base << 1);
+        if (sum2 >= base) sum2 -= base;
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * Write a PNG chunk
+     *
+     * @param type The four letter chunk type
+     * @param data The buffer holding the chunk data
+     * @param off  The offset of the chunk data in the buffer
+     * @param len  The length of the chunk data
+     * @throws IOException If the chunk can not be written
+     */
+    private void writeChunk(String type, byte[] data, int off, int len) throws IOException {
+        writeChunk(out, type, data, off, len);
+    }
+
+    /**
+     * Write a PNG chunk to a channel
+     *
+     * @param out  The channel to write to
+     * @param type The four letter chunk type
+     * @param data The buffer holding the chunk data
+     * @param off  The offset of the chunk data in the buffer
+     * @param len  The length of the chunk data
+     * @throws IOException If the chunk can not be written
+     */
+    static void writeChunk(WritableByteChannel out, String type, byte[] data, int off, int len) throws IOException {
+        byte[] t = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(t);
+        crc.update(data, off, len);
+
+        ByteBuffer chunk = ByteBuffer.allocate(4 + 4 + len + 4);
+        chunk.putInt(len);
+        chunk.put(t);
+        chunk.put(data, off, len);
+        chunk.putInt((int) crc.getValue());
+        chunk.flip();
+        write(out, chunk);
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        write(out, buffer);
+    }
+
+    /**
+     * Write the whole of a buffer to a channel
+     *
+     * @param out    The channel to write to
+     * @param buffer The bytes to write
+     * @throws IOException If the bytes can not be written
+     */
+    static void write(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * RasterCache.java
+ * An on-disk cache of decoded images, so that images can be loaded without inflating their PNGs.
+ * <p>
+ * Each entry is named by a hash of its source file's path and holds the source file's modification time and length,
+ * followed by the raw ARGB or RGB pixels of the image. An entry whose source file has since changed is decoded again
+ */
+public class RasterCache {
+
+    /**
+     * Identifies a raster cache entry
+     */
+    private static final int MAGIC = 0x4D535243;
+
+    /**
+     * The version of the entry format
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The size of an entry's header in bytes: magic, version, modification time, length, width, height and alpha flag
+     */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 4 + 4;
+
+    /**
+     * The directory containing the cache entries
+     */
+    private final File dir;
+
+    /**
+     * Creates a new raster cache
+     *
+     * @param dir The directory to keep the cache entries in, created if it does not exist
+     */
+    public RasterCache(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Read an image, from the cache if its entry is up to date or else by decoding it and updating the cache.
+     * The image returned is always TYPE_INT_ARGB, or TYPE_INT_RGB if the source has no alpha
+     *
+     * @param source The image file to read
+     * @return The image read, or null if the file is not an image
+     * @throws IOException If the file can not be read
+     */
+    public BufferedImage read(File source) throws IOException {
+        File entry = new File(dir, key(source));
+
+        if (entry.isFile()) {
+            BufferedImage cached = load(entry, source);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        BufferedImage decoded = ImageIO.read(source);
+        if (decoded == null) {
+            return null;
+        }
+
+        BufferedImage result = toIntRaster(decoded);
+        try {
+            store(entry, source, result);
+        } catch (IOException ioe) {
+            System.err.println("Error writing raster cache: " + ioe.getLocalizedMessage());
+        }
+        return result;
+    }
+
+    /**
+     * Load a cache entry through a memory mapping
+     *
+     * @param entry  The cache entry
+     * @param source The image file the entry was created from
+     * @return The cached image, or null if the entry is stale or invalid
+     * @throws IOException If the entry can not be read
+     */
+    private BufferedImage load(File entry, File source) throws IOException {
+        try (FileChannel channel = FileChannel.open(entry.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                return null;
+            }
+
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                    || buffer.getLong() != source.lastModified() || buffer.getLong() != source.length()) {
+                return null;
+            }
+
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            boolean alpha = buffer.getInt() != 0;
+            if (width <= 0 || height <= 0 || buffer.remaining() != (long) width * height * 4) {
+                return null;
+            }
+
+            BufferedImage result = new BufferedImage(width, height,
+                    alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+            IntBuffer pixels = buffer.asIntBuffer();
+            pixels.get(((DataBufferInt) result.getRaster().getDataBuffer()).getData());
+            return result;
+        }
+    }
+
+    /**
+     * Write a cache entry, replacing any existing entry atomically
+     *
+     * @param entry  The cache entry
+     * @param source The image file the entry is created from
+     * @param img    The decoded image, either TYPE_INT_ARGB or TYPE_INT_RGB
+     * @throws IOException If the entry can not be written
+     */
+    private void store(File entry, File source, BufferedImage img) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can not create directory: " + dir.getPath());
+        }
+
+        int[] data = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(HEADER_SIZE + data.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(source.lastModified());
+        buffer.putLong(source.length());
+        buffer.putInt(img.getWidth());
+        buffer.putInt(img.getHeight());
+        buffer.putInt(img.getColorModel().hasAlpha() ? 1 : 0);
+        buffer.asIntBuffer().put(data);
+        buffer.position(0);
+
+        File temp = File.createTempFile(entry.getName(), ".tmp", dir);
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException ioe) {
+            Files.deleteIfExists(temp.toPath());
+            throw ioe;
+        }
+        Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Copy an image into a TYPE_INT_ARGB image, or TYPE_INT_RGB if it has no alpha
+     *
+     * @param img The image to copy
+     * @return The copied image
+     */
+    private static BufferedImage toIntRaster(BufferedImage img) {
+        boolean alpha = img.getColorModel().hasAlpha();
+        BufferedImage result = new BufferedImage(img.getWidth(), img.getHeight(),
+                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        int[] data = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+        img.getRGB(0, 0, img.getWidth(), img.getHeight(), data, 0, img.getWidth());
+        return result;
+    }
+
+    /**
+     * Get the name of the cache entry for an image file
+     *
+     * @param source The image file
+     * @return The hex encoded SHA-1 hash of the file's canonical path
+     * @throws IOException If the canonical path can not be determined
+     */
+    private static String key(File source) throws IOException {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] hash = md.digest(source.getCanonicalPath().getBytes(StandardCharsets.UTF_8));
+
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.append(".raw").toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IOException(nsae);
+        }
+    }
+}
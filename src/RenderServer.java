@@ -0,0 +1,323 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RenderServer.java
+ * Renders comics over HTTP, so the assets are decoded and the JIT warmed up once rather than for every comic.
+ * POST a conversation, in the format of {@link Conversation#Conversation(java.util.List)}, to /render and the
+ * comic is sent back as a PNG, or as an animated PNG with one panel per frame if the URL has an "animated" query,
+ * streamed as each frame is encoded.
+ * POSTing a conversation to /size instead only counts the panels of the comic, and sends back its size as JSON.
+ * Each request is handled on its own thread, a virtual thread if the runtime has them, and the number of comics
+ * rendered at once is limited so that their panels and strips fit in the heap; requests beyond the limit wait briefly
+ * and are then turned away with 503
+ */
+public class RenderServer {
+
+    /**
+     * The system property used to set the maximum number of comics rendered at once
+     */
+    public static final String RENDERS_PROPERTY = "mschat.server.renders";
+
+    /**
+     * The maximum number of panels per row of each comic
+     */
+    private static final int WIDTH = 4;
+
+    /**
+     * How long a request waits to be rendered before being turned away, in seconds
+     */
+    private static final int ADMISSION_TIMEOUT = 10;
+
+    private final HttpServer server;
+
+    /**
+     * The pool panels are rendered on, shared between all requests
+     */
+    private final ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    /**
+     * The threads requests are handled on
+     */
+    private final ExecutorService handlers = createHandlers();
+
+    /**
+     * The maximum number of panels being rendered or waiting to be written by each request
+     */
+    private final int window = pool.getParallelism();
+
+    /**
+     * Permits to render a comic, one per comic that fits in the heap at once
+     */
+    private final Semaphore renders;
+
+    /**
+     * The width and height of every panel, which is the width of the zoomed background
+     */
+    private final int panelSize;
+
+    /**
+     * Create a new render server, loading the assets it renders with
+     *
+     * @param port The port to listen on
+     * @throws IOException If the server can not listen on the port
+     */
+    public RenderServer(int port) throws IOException {
+        // decode the assets before accepting any requests
+        AssetLoader ldr = AssetLoader.getInstance();
+        BufferedImage background = ldr.getBackground(Conversation.BACKGROUND, 1);
+        ldr.getFont(Conversation.FONT);
+
+        this.renders = new Semaphore(getMaxRenders(background), true);
+        this.panelSize = background.getWidth();
+
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/render", this::handle);
+        server.createContext("/size", this::handleSize);
+        server.setExecutor(handlers);
+    }
+
+    /**
+     * Create the executor requests are handled on: a virtual thread per request if the runtime has virtual threads,
+     * which are cheap to block while a request waits for admission or for its panels, otherwise a cached pool of
+     * platform threads. Virtual threads are found by reflection so the server still runs on older runtimes
+     *
+     * @return The executor
+     */
+    private static ExecutorService createHandlers() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Start accepting requests
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stop accepting requests, waiting a short time for any being rendered to finish
+     */
+    public void stop() {
+        server.stop(ADMISSION_TIMEOUT);
+        handlers.shutdown();
+    }
+
+    /**
+     * Get the address the server is listening on
+     *
+     * @return The address
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Read the maximum number of comics rendered at once from the {@link #RENDERS_PROPERTY} system property, or
+     * estimate it from the heap left over after the asset cache
+     *
+     * @param background The zoomed background, which is the size of every panel
+     * @return The maximum number of comics rendered at once
+     */
+    private int getMaxRenders(BufferedImage background) {
+        String renders = System.getProperty(RENDERS_PROPERTY);
+        if (renders != null) {
+            try {
+                return Math.max(Integer.parseInt(renders), 1);
+            } catch (NumberFormatException nfe) {
+                System.err.println("Invalid number of renders: " + renders);
+            }
+        }
+
+        // each comic holds its window of panels, a row waiting to be written and the strip that row is drawn into
+        long panel = (long) background.getWidth() * background.getWidth() * 4;
+        long strip = (WIDTH * (background.getWidth() + (long) Comic.X_PADDING) + (long) Comic.X_PADDING)
+                * (background.getWidth() + (long) Comic.Y_PADDING) * 4;
+        long perRender = panel * (window + WIDTH) + strip;
+
+        Runtime rt = Runtime.getRuntime();
+        long free = rt.maxMemory() - AssetLoader.getInstance().getCache().getBudget();
+        return (int) Math.max(Math.min(free / 2 / perRender, Integer.MAX_VALUE), 1);
+    }
+
+    /**
+     * Handle a single request to render a comic
+     *
+     * @param exchange The request and its response
+     * @throws IOException If the response can not be sent
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                sendError(exchange, 405, "Conversations must be POSTed");
+                return;
+            }
+
+            boolean admitted;
+            try {
+                admitted = renders.tryAcquire(ADMISSION_TIMEOUT, TimeUnit.SECONDS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (!admitted) {
+                exchange.getResponseHeaders().set("Retry-After", String.valueOf(ADMISSION_TIMEOUT));
+                sendError(exchange, 503, "Too many comics are being rendered");
+                return;
+            }
+
+            String query = exchange.getRequestURI().getQuery();
+            boolean animated = query != null && Arrays.asList(query.split("&")).contains("animated");
+            Path png = null;
+            try {
+                try {
+                    if (animated) {
+                        renderAnimation(exchange);
+                    } else {
+                        png = Files.createTempFile("mschat", ".png");
+                        render(exchange, png);
+                    }
+                } finally {
+                    renders.release();
+                }
+
+                if (png != null) {
+                    exchange.getResponseHeaders().set("Content-Type", "image/png");
+                    exchange.sendResponseHeaders(200, Files.size(png));
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        Files.copy(png, out);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error rendering comic: " + e.getLocalizedMessage());
+                if (exchange.getResponseCode() == -1) {
+                    sendError(exchange, 500, "Error rendering comic: " + e.getLocalizedMessage());
+                }
+            } finally {
+                if (png != null) {
+                    Files.deleteIfExists(png);
+                }
+            }
+        }
+    }
+
+    /**
+     * Handle a single request for the size of a comic. The panels are only counted, without decoding any assets or
+     * keeping the conversation, so this is not limited like rendering is
+     *
+     * @param exchange The request and its response
+     * @throws IOException If the response can not be sent
+     */
+    private void handleSize(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                sendError(exchange, 405, "Conversations must be POSTed");
+                return;
+            }
+
+            int panels;
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(exchange.getRequestBody(),
+                    StandardCharsets.UTF_8))) {
+                panels = new Conversation().countPanels(br);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error laying out comic: " + e.getLocalizedMessage());
+                sendError(exchange, 500, "Error laying out comic: " + e.getLocalizedMessage());
+                return;
+            }
+
+            Dimension size = Scene.Strip.getSize(panels, panelSize, panelSize, WIDTH);
+            byte[] body = String.format("{\"width\": %d, \"height\": %d, \"panels\": %d}%n", size.width,
+                    size.height, panels).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        }
+    }
+
+    /**
+     * Render the conversation in the body of a request as it is read
+     *
+     * @param exchange The request
+     * @param png      The file to write the comic to
+     * @throws IOException If the request can not be read or the comic can not be written
+     */
+    private void render(HttpExchange exchange, Path png) throws IOException {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(exchange.getRequestBody(),
+                StandardCharsets.UTF_8));
+             FileChannel out = FileChannel.open(png, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                     StandardOpenOption.WRITE)) {
+            ComicWriter c = new ComicWriter(out, WIDTH);
+            new Conversation().toImages(br, pool, window, c);
+            c.close();
+        }
+    }
+
+    /**
+     * Render the conversation in the body of a request as an animation, sending each frame as soon as it is encoded.
+     * The number of frames comes before the first frame, so the conversation is read in full and its panels counted
+     * first, which holds its text but not the animation. Once the response has started an error can no longer be sent
+     * as a status, so the animation is left without its end chunk instead
+     *
+     * @param exchange The request and its response
+     * @throws IOException If the request can not be read or the animation can not be sent
+     */
+    private void renderAnimation(HttpExchange exchange) throws IOException {
+        String conversation;
+        try (InputStream in = exchange.getRequestBody()) {
+            conversation = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        int frames = new Conversation().countPanels(new BufferedReader(new StringReader(conversation)));
+
+        exchange.getResponseHeaders().set("Content-Type", "image/png");
+        exchange.sendResponseHeaders(200, 0);
+        try (WritableByteChannel out = Channels.newChannel(exchange.getResponseBody())) {
+            AnimatedWriter c = new AnimatedWriter(out, frames);
+            new Conversation().toImages(new BufferedReader(new StringReader(conversation)), pool, window, c);
+            c.close();
+        }
+    }
+
+    /**
+     * Send a plain text error
+     *
+     * @param exchange The request to respond to
+     * @param status   The HTTP status code
+     * @param message  The message to send
+     * @throws IOException If the response can not be sent
+     */
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+}
@@ -0,0 +1,326 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Scene.java
+ * Descriptions of where things go in a comic, worked out before anything is drawn: the rectangle of each panel in a
+ * strip, and the sprites, speech bubbles and lines of text in a panel. Each panel is laid out, which only measures its
+ * text, and then drawn from its description, so the two steps can be timed and changed separately
+ */
+public class Scene {
+
+    private Scene() {
+    }
+
+    /**
+     * The rectangle of each panel in a comic strip, and the size of the strip. Panels are placed left to right in rows,
+     * separated by {@link Comic#X_PADDING} and {@link Comic#Y_PADDING}, with each row as tall as its tallest panel
+     */
+    public static class Strip {
+
+        /**
+         * The X and Y position, width and height of each panel in turn
+         */
+        private final int[] frames;
+
+        private final int width;
+        private final int height;
+
+        /**
+         * Arrange panels into rows
+         *
+         * @param widths  The width of each panel
+         * @param heights The height of each panel
+         * @param perRow  The maximum number of panels per row
+         */
+        public Strip(int[] widths, int[] heights, int perRow) {
+            int xPadding = (int) Comic.X_PADDING;
+            int yPadding = (int) Comic.Y_PADDING;
+            this.frames = new int[4 * widths.length];
+
+            int maxWidth = 0;
+            int x = xPadding;
+            int y = yPadding;
+            int rowHeight = 0;
+            for (int i = 0; i < widths.length; i++) {
+                frames[4 * i] = x;
+                frames[4 * i + 1] = y;
+                frames[4 * i + 2] = widths[i];
+                frames[4 * i + 3] = heights[i];
+
+                x += widths[i] + xPadding;
+                rowHeight = Math.max(rowHeight, heights[i]);
+                maxWidth = Math.max(maxWidth, x);
+
+                if ((i + 1) % perRow == 0 || i == widths.length - 1) {
+                    x = xPadding;
+                    y += rowHeight + yPadding;
+                    rowHeight = 0;
+                }
+            }
+
+            this.width = Math.max(maxWidth, xPadding);
+            this.height = y;
+        }
+
+        /**
+         * Get the size of a strip of panels that are all the same size, without working out where each panel goes
+         *
+         * @param panels The number of panels
+         * @param width  The width of each panel
+         * @param height The height of each panel
+         * @param perRow The maximum number of panels per row
+         * @return The width and height of the strip, as {@link #getWidth()} and {@link #getHeight()} would give
+         */
+        public static Dimension getSize(int panels, int width, int height, int perRow) {
+            int xPadding = (int) Comic.X_PADDING;
+            int yPadding = (int) Comic.Y_PADDING;
+            int columns = Math.min(panels, perRow);
+            int rows = (panels + perRow - 1) / perRow;
+            return new Dimension(columns * (width + xPadding) + xPadding, rows * (height + yPadding) + yPadding);
+        }
+
+        /**
+         * Get the number of panels in the strip
+         *
+         * @return The number of panels
+         */
+        public int size() {
+            return frames.length / 4;
+        }
+
+        /**
+         * Get the rectangle a panel is drawn in
+         *
+         * @param i The index of the panel
+         * @return A new rectangle of the panel's position and size in the strip
+         */
+        public Rectangle getFrame(int i) {
+            return new Rectangle(frames[4 * i], frames[4 * i + 1], frames[4 * i + 2], frames[4 * i + 3]);
+        }
+
+        /**
+         * Get the width of the whole strip, including the padding on either side
+         *
+         * @return The width in pixels
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * Get the height of the whole strip, including the padding above and below
+         *
+         * @return The height in pixels
+         */
+        public int getHeight() {
+            return height;
+        }
+    }
+
+    /**
+     * Everything drawn in a single panel, back to front: the background, then the sprites, then the speech bubbles
+     */
+    public static class Panel {
+        private final int width;
+        private final int height;
+
+        /**
+         * Whether the background is drawn behind the panel
+         */
+        private final boolean background;
+
+        private final List<Sprite> sprites;
+        private final List<Bubble> bubbles;
+
+        /**
+         * Creates a new panel description
+         *
+         * @param width      The width of the panel
+         * @param height     The height of the panel
+         * @param background Whether the background is drawn behind the panel
+         * @param sprites    The sprites drawn over the background, back to front
+         * @param bubbles    The speech bubbles drawn over the sprites, back to front
+         */
+        public Panel(int width, int height, boolean background, List<Sprite> sprites, List<Bubble> bubbles) {
+            this.width = width;
+            this.height = height;
+            this.background = background;
+            this.sprites = Collections.unmodifiableList(new ArrayList<>(sprites));
+            this.bubbles = Collections.unmodifiableList(new ArrayList<>(bubbles));
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public boolean hasBackground() {
+            return background;
+        }
+
+        public List<Sprite> getSprites() {
+            return sprites;
+        }
+
+        public List<Bubble> getBubbles() {
+            return bubbles;
+        }
+    }
+
+    /**
+     * A character drawn at a position in a panel
+     */
+    public static class Sprite {
+        private final Character character;
+        private final String expression;
+        private final int level;
+        private final boolean flip;
+        private final int x;
+        private final int y;
+
+        /**
+         * Creates a new sprite placement
+         *
+         * @param character  The character to draw
+         * @param expression The expression of the character
+         * @param level      The zoom level of the character
+         * @param flip       Whether the character is mirrored
+         * @param x          The X position of the left of the sprite in the panel
+         * @param y          The Y position of the top of the sprite in the panel
+         */
+        public Sprite(Character character, String expression, int level, boolean flip, int x, int y) {
+            this.character = character;
+            this.expression = expression;
+            this.level = level;
+            this.flip = flip;
+            this.x = x;
+            this.y = y;
+        }
+
+        /**
+         * Get the image of the sprite, drawing the character's variant if it has not been drawn before
+         *
+         * @return The image of the sprite
+         */
+        public BufferedImage getImage() {
+            return character.getImage(expression, level, flip);
+        }
+
+        public int getX() {
+            return x;
+        }
+
+        public int getY() {
+            return y;
+        }
+    }
+
+    /**
+     * A speech bubble laid out in a panel: the rounded box with its tail below it, and the baseline of each line of
+     * text inside it
+     */
+    public static class Bubble {
+        private final int x;
+        private final int y;
+        private final int width;
+        private final int height;
+        private final BubbleText.Pointing point;
+
+        /**
+         * The upper case text the lines are taken from
+         */
+        private final String text;
+
+        /**
+         * The start and end offsets into the text of each line
+         */
+        private final int[] lines;
+
+        /**
+         * The X position every line starts at
+         */
+        private final int textX;
+
+        /**
+         * The Y position of the baseline of each line
+         */
+        private final int[] textY;
+
+        /**
+         * Creates a new speech bubble placement
+         *
+         * @param x      The X position of the left of the box
+         * @param y      The Y position of the top of the box
+         * @param width  The width of the box
+         * @param height The height of the box, not including the tail
+         * @param point  The direction the tail points towards
+         * @param text   The text of the bubble
+         * @param lines  The start and end offsets into the text of each line
+         * @param textX  The X position every line starts at
+         * @param textY  The Y position of the baseline of each line
+         */
+        public Bubble(int x, int y, int width, int height, BubbleText.Pointing point, String text, int[] lines,
+                      int textX, int[] textY) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.point = point;
+            this.text = text;
+            this.lines = lines.clone();
+            this.textX = textX;
+            this.textY = textY.clone();
+        }
+
+        public int getX() {
+            return x;
+        }
+
+        public int getY() {
+            return y;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public BubbleText.Pointing getPoint() {
+            return point;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public int getNumberOfLines() {
+            return lines.length / 2;
+        }
+
+        public int getLineStart(int i) {
+            return lines[2 * i];
+        }
+
+        public int getLineEnd(int i) {
+            return lines[2 * i + 1];
+        }
+
+        public int getTextX() {
+            return textX;
+        }
+
+        public int getTextY(int i) {
+            return textY[i];
+        }
+    }
+}
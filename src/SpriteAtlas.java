@@ -0,0 +1,254 @@
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * SpriteAtlas.java
+ * Packs every expression of a character into a single image so that a character can be loaded with one file open and one decode.
+ * <p>
+ * An atlas directory contains one PNG per character, with its expressions laid out left to right,
+ * and an index file with one line per expression in the following format:
+ * &lt;character&gt;,&lt;expression&gt;,&lt;x&gt;,&lt;y&gt;,&lt;width&gt;,&lt;height&gt;
+ * <p>
+ * Run this class to pack mschat/characters/ into mschat/atlas/
+ */
+public class SpriteAtlas {
+
+    /**
+     * The name of the index file in an atlas directory
+     */
+    public static final String INDEX = "atlas.idx";
+
+    /**
+     * Packs all the characters in the asset directory into atlases
+     *
+     * @param args Unused
+     * @throws IOException If a sprite can not be read or an atlas can not be written
+     */
+    public static void main(String[] args) throws IOException {
+        pack(new File("mschat/characters/"), new File("mschat/atlas/"));
+    }
+
+    /**
+     * Pack each character directory into an atlas image and write the index of all atlases
+     *
+     * @param characters The root "characters" directory, with a folder of expressions per character
+     * @param atlas      The directory to write the atlases and index to
+     * @throws IOException If a sprite can not be read or an atlas can not be written
+     */
+    public static void pack(File characters, File atlas) throws IOException {
+        File[] dirs = characters.listFiles();
+        if (dirs == null) {
+            throw new IOException("Can not read directory: " + characters.getPath());
+        }
+        if (!atlas.isDirectory() && !atlas.mkdirs()) {
+            throw new IOException("Can not create directory: " + atlas.getPath());
+        }
+
+        try (PrintWriter index = new PrintWriter(new FileWriter(new File(atlas, INDEX)))) {
+            for (File dir : dirs) {
+                File[] files = dir.listFiles();
+                if (!dir.isDirectory() || files == null) {
+                    continue;
+                }
+
+                Map<String, BufferedImage> sprites = new TreeMap<>();
+                int width = 0;
+                int height = 0;
+                for (File f : files) {
+                    BufferedImage img = isSprite(f) ? ImageIO.read(f) : null;
+                    if (img != null) {
+                        sprites.put(f.getName().substring(0, f.getName().lastIndexOf('.')), img);
+                        width += img.getWidth();
+                        height = Math.max(height, img.getHeight());
+                    }
+                }
+                if (sprites.isEmpty()) {
+                    continue;
+                }
+
+                BufferedImage packed = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                Graphics2D g = packed.createGraphics();
+                g.setComposite(AlphaComposite.Src);
+
+                int x = 0;
+                for (Map.Entry<String, BufferedImage> e : sprites.entrySet()) {
+                    BufferedImage img = e.getValue();
+                    g.drawImage(img, x, 0, null);
+                    index.println(dir.getName() + "," + e.getKey() + "," + x + ",0," + img.getWidth() + "," + img.getHeight());
+                    x += img.getWidth();
+                }
+                g.dispose();
+
+                ImageIO.write(packed, "PNG", new File(atlas, dir.getName() + ".png"));
+            }
+        }
+    }
+
+    /**
+     * Read the index of an atlas directory
+     *
+     * @param atlas The atlas directory
+     * @return A map between character names and the bounds of each of their expressions, empty if there is no index
+     * @throws IOException If the index exists but can not be read
+     */
+    public static Map<String, Map<String, Rectangle>> readIndex(File atlas) throws IOException {
+        Map<String, Map<String, Rectangle>> result = new TreeMap<>();
+        File f = new File(atlas, INDEX);
+        if (!f.isFile()) {
+            return result;
+        }
+
+        try (BufferedReader br = new BufferedReader(new FileReader(f))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] parts = line.split(",");
+                if (parts.length != 6) {
+                    continue;
+                }
+
+                Rectangle bounds = new Rectangle(Integer.parseInt(parts[2]), Integer.parseInt(parts[3]),
+                        Integer.parseInt(parts[4]), Integer.parseInt(parts[5]));
+                result.computeIfAbsent(parts[0], k -> new TreeMap<>()).put(parts[1], bounds);
+            }
+        } catch (NumberFormatException nfe) {
+            throw new IOException("Invalid atlas index: " + nfe.getLocalizedMessage(), nfe);
+        }
+
+        return result;
+    }
+
+    /**
+     * Check whether a character's atlas is older than its directory of expressions, because an expression was edited,
+     * added or removed since the atlas was packed. Only the names and modification times of the files that would be
+     * packed are read, so other files in the directory, such as notes or thumbnails, do not make the atlas stale
+     *
+     * @param image   The character's atlas image
+     * @param sprites The bounds of each expression in the atlas, from the index
+     * @param dir     The directory containing the character's expressions
+     * @return True if the directory has changed since the atlas was packed, false if it has not or does not exist
+     */
+    public static boolean isStale(File image, Map<String, Rectangle> sprites, File dir) {
+        File[] files = dir.listFiles(SpriteAtlas::isSprite);
+        if (files == null) {
+            return false;
+        }
+
+        // removed expressions are found by name, as the directory itself also changes when other files do
+        long packed = image.lastModified();
+        Set<String> names = new TreeSet<>();
+        for (File f : files) {
+            if (f.lastModified() > packed) {
+                return true;
+            }
+            names.add(f.getName().substring(0, f.getName().lastIndexOf('.')));
+        }
+        return !names.equals(sprites.keySet());
+    }
+
+    /**
+     * Check whether a file in a character's directory is an expression, by whether its extension is one ImageIO can
+     * read. Hidden files are never expressions
+     *
+     * @param f The file
+     * @return True if the file is an image that is packed into the character's atlas
+     */
+    static boolean isSprite(File f) {
+        String name = f.getName();
+        int dot = name.lastIndexOf('.');
+        if (!f.isFile() || dot <= 0) {
+            return false;
+        }
+
+        String suffix = name.substring(dot + 1);
+        for (String s : ImageIO.getReaderFileSuffixes()) {
+            if (s.equalsIgnoreCase(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read an atlas image by memory mapping and decoding it
+     *
+     * @param f The atlas image
+     * @return The decoded atlas
+     * @throws IOException If the atlas is not an image or can not be loaded
+     */
+    public static BufferedImage read(File f) throws IOException {
+        BufferedImage atlas;
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            atlas = ImageIO.read(new ByteBufferInputStream(buffer));
+        }
+        if (atlas == null) {
+            throw new IOException("Not an image: " + f.getPath());
+        }
+        return atlas;
+    }
+
+    /**
+     * Split a decoded atlas into the expressions of a character. Each expression is a subimage sharing the atlas' pixels
+     *
+     * @param atlas   The decoded atlas
+     * @param sprites The bounds of each expression in the atlas
+     * @return A map between the name of the expression and the expression image
+     */
+    public static Map<String, BufferedImage> split(BufferedImage atlas, Map<String, Rectangle> sprites) {
+        Map<String, BufferedImage> result = new TreeMap<>();
+        for (Map.Entry<String, Rectangle> e : sprites.entrySet()) {
+            Rectangle r = e.getValue();
+            result.put(e.getKey(), atlas.getSubimage(r.x, r.y, r.width, r.height));
+        }
+        return result;
+    }
+
+    /**
+     * Reads from a byte buffer without copying it
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
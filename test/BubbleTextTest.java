@@ -0,0 +1,42 @@
+import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.TextLayout;
+import java.util.List;
+
+/**
+ * BubbleTextTest.java
+ * Checks that speech bubbles wrapped by pixels are sized by their widest line rather than the line with the most
+ * characters. Run from the repository root, so the font is found in mschat/fonts/
+ */
+public class BubbleTextTest {
+
+    public static void main(String[] args) {
+        Font font = AssetLoader.getInstance().getFont(Conversation.FONT);
+        FontRenderContext frc = Compositor.create(1, 1).createGraphics().getFontRenderContext();
+
+        // wide letters fill the first line, while the second has more but much narrower letters
+        List<BubbleText> bubbles = BubbleText.createText("WWWWWWWWWWWWWWWWWWWWWW IIIIIIIIIIIIIIIIIIIIIIIIIIIIII",
+                true, font, frc);
+        check(bubbles.size() == 1, "Expected one bubble but was " + bubbles.size());
+
+        BubbleText bubble = bubbles.get(0);
+        String[] lines = bubble.getNewString();
+        check(lines.length == 2, "Expected two lines but was " + lines.length);
+        check(lines[1].length() > lines[0].length(), "Expected the second line to have the most characters");
+
+        double first = new TextLayout(lines[0], font, frc).getBounds().getWidth();
+        double second = new TextLayout(lines[1], font, frc).getBounds().getWidth();
+        check(first > second, "Expected the first line to be the widest");
+
+        double width = bubble.getBounds(frc, font).getWidth() - BubbleText.X_PADDING;
+        check(width >= first, "Bubble is " + width + " wide but its widest line is " + first);
+
+        System.out.println("BubbleTextTest passed");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}